@@ -0,0 +1,52 @@
+package edu.grinnell.csc207.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * An AsciiSink spells out each byte it is given as eight ASCII '0' or '1'
+ * digits, most significant bit first, and hands the digits on to another
+ * sink.
+ */
+class AsciiSink implements ByteSink {
+    private final ByteSink sink;
+    private ByteBuffer digits;  // the spelled-out bytes for the next sink
+
+    /**
+     * Constructs a new AsciiSink in front of the given sink.
+     * @param sink the sink to write the digits to
+     */
+    AsciiSink(ByteSink sink) {
+        this.sink = sink;
+        this.digits = ByteBuffer.allocate(1 << 13);
+    }
+
+    @Override
+    public ByteBuffer drain(ByteBuffer full) throws IOException {
+        while (full.hasRemaining()) {
+            int b = full.get();
+            for (int i = 7; i >= 0; i--) {
+                digits.put((byte) ('0' + ((b >>> i) & 1)));
+            }
+            if (!digits.hasRemaining()) {
+                digits = sink.drain(digits.flip());
+            }
+        }
+        full.clear();
+        return full;
+    }
+
+    @Override
+    public long stallNanos() {
+        return sink.stallNanos();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            digits = sink.drain(digits.flip());
+        } finally {
+            sink.close();
+        }
+    }
+}
@@ -1,29 +1,146 @@
 package edu.grinnell.csc207.compression;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 /**
- * A BitInputStream reads a file bit-by-bit.
+ * A BitInputStream reads a file, stream or channel bit-by-bit.
+ *
+ * Bytes are pulled from the file a block at a time into an internal
+ * buffer and from there into a 64-bit accumulator, so a call to readBits
+ * costs a couple of shifts rather than one syscall per byte and one
+ * branch per bit. Large files are memory-mapped instead of read into the
+ * buffer, and slow inputs can be read ahead on a background thread; see
+ * ReadMode.
  */
 public class BitInputStream implements AutoCloseable {
-    private FileInputStream input;
-    private int digits;     // next set of digits (buffer)
-    private int cursor;     // how many digits from buffer have been used
+    private ByteSource input;   // null when reading a caller's buffer
+    private ByteBuffer buffer;  // bytes read from the file but not yet used
+    private long bits;          // the accumulator; the low count bits are valid
+    private int count;          // how many bits of the accumulator are unread
 
-    private static final int BYTE_SIZE = 8;  // digits per byte
+    private static final int BUFFER_SIZE = 1 << 16;  // bytes per file read
+    private static final long MAP_WINDOW = 1L << 30;  // bytes per mapping
+    private static final long MAP_THRESHOLD = 1L << 26;  // smallest file AUTO maps
+    private static final int PREFETCH_SIZE = 1 << 20;  // bytes per read-ahead buffer
+    private static final int PREFETCH_DEPTH = 4;  // read-ahead buffers in the ring
+
+    /** How a BitInputStream reads its file. */
+    public enum ReadMode {
+        /** Map files of at least 64 MB, buffer smaller ones. */
+        AUTO,
+        /** Copy the file through an internal buffer. */
+        BUFFERED,
+        /** Map the file into memory a window at a time. */
+        MAPPED,
+        /** Read ahead into a ring of buffers on a background thread. */
+        PREFETCH
+    }
 
     /**
      * Constructs a new BitInputStream attached to the given file
      * @param file the file to open
      */
     public BitInputStream(String file) throws IOException {
-        input = new FileInputStream(file);
-        nextByte();
+        this(file, ReadMode.AUTO);
+    }
+
+    /**
+     * Constructs a new BitInputStream attached to the given file
+     * @param file the file to open
+     * @param mode how to read the file
+     */
+    public BitInputStream(String file, ReadMode mode) throws IOException {
+        Path path = Paths.get(file);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        if (!Files.isRegularFile(path)) {
+            // A pipe or device named as a file can only be read in order.
+            input = mode == ReadMode.PREFETCH
+                    ? new PrefetchSource(channel, PREFETCH_SIZE, PREFETCH_DEPTH)
+                    : new ChannelSource(channel, BUFFER_SIZE, false);
+        } else if (mode == ReadMode.MAPPED
+                || mode == ReadMode.AUTO && channel.size() >= MAP_THRESHOLD) {
+            input = new MappedSource(channel, MAP_WINDOW);
+        } else if (mode == ReadMode.PREFETCH) {
+            input = new PrefetchSource(channel, PREFETCH_SIZE, PREFETCH_DEPTH);
+        } else {
+            input = new ChannelSource(channel, BUFFER_SIZE);
+        }
+        buffer = ByteBuffer.allocate(0);
+    }
+
+    /**
+     * Constructs a new BitInputStream that reads from the given stream.
+     * Closing the BitInputStream closes the stream.
+     * @param in the stream to read from
+     */
+    public BitInputStream(InputStream in) {
+        this(Channels.newChannel(in));
+    }
+
+    /**
+     * Constructs a new BitInputStream that reads from the given channel.
+     * Closing the BitInputStream closes the channel.
+     * @param in the channel to read from
+     */
+    public BitInputStream(ReadableByteChannel in) {
+        this(in, ReadMode.BUFFERED);
+    }
+
+    /**
+     * Constructs a new BitInputStream that reads from the given channel.
+     * Closing the BitInputStream closes the channel.
+     * @param in the channel to read from
+     * @param mode PREFETCH to read the channel ahead on a background
+     *        thread; any other mode reads it through an internal buffer
+     */
+    public BitInputStream(ReadableByteChannel in, ReadMode mode) {
+        if (mode == ReadMode.PREFETCH) {
+            input = new PrefetchSource(in, PREFETCH_SIZE, PREFETCH_DEPTH);
+        } else {
+            input = new ChannelSource(in, BUFFER_SIZE);
+        }
+        buffer = ByteBuffer.allocate(0);
+    }
+
+    /**
+     * Constructs a new BitInputStream that reads from the given source.
+     * Closing the BitInputStream closes the source.
+     * @param in the source to read from
+     */
+    BitInputStream(ByteSource in) {
+        input = in;
+        buffer = ByteBuffer.allocate(0);
+    }
+
+    /**
+     * Constructs a new BitInputStream that reads the bytes between the
+     * position and limit of the given buffer in place, without copying
+     * them. The buffer may be direct, so off-heap payloads can be decoded
+     * where they sit; a MemorySegment can be read through its
+     * asByteBuffer() view. The buffer's position is left untouched.
+     * @param in the buffer to read from
+     */
+    public BitInputStream(ByteBuffer in) {
+        // The accumulator is filled with big-endian long loads regardless
+        // of the order the caller uses for the buffer.
+        buffer = in.duplicate().order(ByteOrder.BIG_ENDIAN);
     }
 
     /** @return true iff the stream has bits left to produce */
     public boolean hasBits() {
-        return digits != -1;
+        if (count == 0) {
+            refill();
+        }
+        return count > 0;
     }
 
     /**
@@ -32,16 +149,15 @@ public class BitInputStream implements AutoCloseable {
      *         of data
      **/
     public int readBit() {
-        // if at eof, return -1
-        if (digits == -1) {
-            return -1;
-        }
-        int result = (digits & (1 << cursor)) >> cursor;
-        cursor--;
-        if (cursor < 0) {
-            nextByte();
+        if (count == 0) {
+            refill();
+            // if at eof, return -1
+            if (count == 0) {
+                return -1;
+            }
         }
-        return result;
+        count--;
+        return (int) (bits >>> count) & 1;
     }
 
     /**
@@ -51,30 +167,220 @@ public class BitInputStream implements AutoCloseable {
      *         if the stream runs out of data
      */
     public int readBits(int n) {
-        int ret = 0;
-        for (int i = n - 1; i >= 0; i--) {
-            int bit = readBit();
-            if (bit == -1) {
+        if (count < n) {
+            refill();
+            if (count < n) {
                 return -1;
             }
-            ret = ret | (bit << i);
         }
-        return ret;
+        count -= n;
+        return (int) ((bits >>> count) & ((1L << n) - 1));
     }
 
-    /** Refreshes the internal buffer with the next BYTE_SIZE bits. */
-    private void nextByte() {
+    /**
+     * Looks at the next n bits of the stream in big-endian order without
+     * consuming them. If fewer than n bits remain, the missing low-order
+     * bits are 0s; bitsAvailable tells how many of them are real.
+     * @param n the number of bits to peek at (0--32)
+     * @return the next n bits of the stream packed in a single integer
+     */
+    public int peekBits(int n) {
+        if (count < n) {
+            refill();
+            if (count < n) {
+                return (int) ((bits << (n - count)) & ((1L << n) - 1));
+            }
+        }
+        return (int) ((bits >>> (count - n)) & ((1L << n) - 1));
+    }
+
+    /**
+     * Consumes the next n bits of the stream, typically after a peekBits
+     * call has shown how many of them make up the next code.
+     * @param n the number of bits to skip (0--32)
+     * @return true, or false (skipping nothing) if the stream runs out of
+     *         data first
+     */
+    public boolean skipBits(int n) {
+        if (count < n) {
+            refill();
+            if (count < n) {
+                return false;
+            }
+        }
+        count -= n;
+        return true;
+    }
+
+    /**
+     * @return the number of bits that can be read, peeked at or skipped
+     *         without going back to the underlying input. Right after a
+     *         peekBits(n) it is at least n unless the input is exhausted.
+     */
+    public int bitsAvailable() {
+        return count;
+    }
+
+    /**
+     * Skips the rest of the current byte, so that the next read starts on
+     * a byte boundary of the input.
+     */
+    public void alignToByte() {
+        count -= count % 8;
+    }
+
+    /**
+     * Reads up to len whole bytes in bulk. The stream must be at a byte
+     * boundary.
+     * @param dst the array to read into
+     * @param off the index of dst to start at
+     * @param len the number of bytes to read
+     * @return the number of bytes read, which is less than len only if the
+     *         stream runs out of data
+     */
+    public int readBytes(byte[] dst, int off, int len) {
+        requireAligned();
+        int n = 0;
+        while (n < len && count > 0) {
+            count -= 8;
+            dst[off + n++] = (byte) (bits >>> count);
+        }
+        while (n < len) {
+            if (!buffer.hasRemaining() && !nextBlock()) {
+                break;
+            }
+            int k = Math.min(len - n, buffer.remaining());
+            buffer.get(dst, off + n, k);
+            n += k;
+        }
+        return n;
+    }
+
+    /**
+     * Skips up to n whole bytes. The stream must be at a byte boundary.
+     * @param n the number of bytes to skip
+     * @return the number of bytes skipped, which is less than n only if the
+     *         stream runs out of data
+     */
+    public long skipBytes(long n) {
+        requireAligned();
+        long done = Math.min(n, count / 8);
+        count -= (int) done * 8;
+        while (done < n) {
+            if (!buffer.hasRemaining() && !nextBlock()) {
+                break;
+            }
+            int k = (int) Math.min(n - done, buffer.remaining());
+            buffer.position(buffer.position() + k);
+            done += k;
+        }
+        return done;
+    }
+
+    /**
+     * Copies up to n whole bytes straight to the given output. The stream
+     * must be at a byte boundary. Where both ends allow it, bytes that have
+     * not been buffered yet move from file to output with
+     * FileChannel.transferTo and never enter user space.
+     * @param n the number of bytes to copy
+     * @param out the stream to copy to
+     * @return the number of bytes copied, which is less than n only if the
+     *         stream runs out of data
+     */
+    public long copyBytes(long n, BitOutputStream out) {
+        requireAligned();
+        long done = 0;
+        while (done < n && count > 0) {
+            count -= 8;
+            out.writeBits((int) (bits >>> count) & 0xFF, 8);
+            done++;
+        }
+        while (done < n) {
+            if (!buffer.hasRemaining()) {
+                if (input != null) {
+                    try {
+                        done += input.transferTo(n - done, out);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e.toString());
+                    }
+                }
+                if (done == n || !nextBlock()) {
+                    break;
+                }
+            }
+            int k = (int) Math.min(n - done, buffer.remaining());
+            out.writeBytes(buffer.slice(buffer.position(), k));
+            buffer.position(buffer.position() + k);
+            done += k;
+        }
+        return done;
+    }
+
+    private void requireAligned() {
+        if (count % 8 != 0) {
+            throw new IllegalStateException("Not at a byte boundary.");
+        }
+    }
+
+    /**
+     * @return the total time, in nanoseconds, this stream has spent waiting
+     *         for its underlying input
+     */
+    public long getStallNanos() {
+        return input == null ? 0 : input.stallNanos();
+    }
+
+    /**
+     * Tops up the accumulator so that it holds at least 56 bits, or every
+     * remaining bit of the file if there are fewer than that. Must only be
+     * called when the accumulator holds fewer than 57 bits.
+     */
+    private void refill() {
+        if (buffer.remaining() >= Long.BYTES) {
+            // Take as many whole bytes as fit from a single 8-byte load.
+            int take = (63 - count) >>> 3;
+            long word = buffer.getLong(buffer.position());
+            bits = (bits << (take << 3)) | (word >>> (Long.SIZE - (take << 3)));
+            buffer.position(buffer.position() + take);
+            count += take << 3;
+            return;
+        }
+        while (count <= Long.SIZE - 8) {
+            if (!buffer.hasRemaining() && !nextBlock()) {
+                return;
+            }
+            bits = (bits << 8) | (buffer.get() & 0xFF);
+            count += 8;
+        }
+    }
+
+    /**
+     * Refreshes the internal buffer with the next block of the file.
+     * @return false iff the file has no more bytes
+     */
+    private boolean nextBlock() {
+        if (input == null) {
+            return false;
+        }
+        ByteBuffer next;
         try {
-            digits = input.read();
+            next = input.next(buffer);
         } catch (IOException e) {
             throw new RuntimeException(e.toString());
         }
-        cursor = BYTE_SIZE - 1;
+        if (next == null) {
+            return false;
+        }
+        buffer = next;
+        return buffer.hasRemaining();
     }
 
     /** Closes the stream, flushing any remaining bits to the file. */
     @Override
     public void close() {
+        if (input == null) {
+            return;
+        }
         try {
             input.close();
         } catch (IOException e) {
@@ -1,39 +1,110 @@
 package edu.grinnell.csc207.compression;
 
 import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 /**
- * A BitOutputStream allows bit-by-bit writing to a file.
+ * A BitOutputStream allows bit-by-bit writing to a file, stream or channel.
+ *
+ * Bits are collected in a 64-bit register and spilled 32 at a time into
+ * an internal buffer, which is written to the file in large chunks. Those
+ * writes can optionally be handed to a background thread (write-behind)
+ * so that the stream does not wait on the disk. To write the bits as
+ * ASCII 0s and 1s instead, use a DebugBitOutputStream.
  */
 public class BitOutputStream implements AutoCloseable {
-    private PrintStream output;
-    private int digits;     // a buffer used to build up next set of digits
-    private int cursor;     // our current position in the buffer.
-    private boolean debug;  // set to true to write ASCII 0s and 1s rather than
-                            // bits
+    private ByteSink output;    // null when writing a caller's buffer
+    private ByteBuffer target;  // the caller's buffer, if output is null
+    private ByteBuffer buffer;  // whole bytes waiting to be written
+    private long bits;          // the register; the low count bits are pending
+    private int count;          // how many bits of the register are pending
+    private boolean closed;     // whether close has been called
 
-    private static final int BYTE_SIZE = 8; // digits per byte
+    private static final int BUFFER_SIZE = 1 << 16;  // bytes per file write
+    private static final int WRITE_BEHIND_SIZE = 1 << 20;  // bytes per queued write
 
     /**
      * Constructs a new BitOutputStream attached to the given file.
      * @param file the file to write to
-     * @param debug true iff you want to output the bits as ASCII 0s and 1s
-     * @throws FileNotFoundException if the file is not found
+     * @throws IOException if the file cannot be opened
      */
-    public BitOutputStream(String file, boolean debug) throws IOException {
-        this.output = new PrintStream(file);
-        this.debug = debug;
-        digits = 0;
-        cursor = BYTE_SIZE - 1;
+    public BitOutputStream(String file) throws IOException {
+        this(file, 0);
     }
 
     /**
      * Constructs a new BitOutputStream attached to the given file.
      * @param file the file to write to
-     * @throws FileNotFoundException if the file is not found
+     * @param writeBehind the number of full buffers that may be queued for
+     *        a background writer thread, or 0 to write on this thread
+     * @throws IOException if the file cannot be opened
      */
-    public BitOutputStream(String file) throws IOException {
-        this(file, false);
+    public BitOutputStream(String file, int writeBehind) throws IOException {
+        this(FileChannel.open(Paths.get(file), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING),
+                writeBehind);
+    }
+
+    /**
+     * Constructs a new BitOutputStream that writes to the given stream.
+     * Closing the BitOutputStream closes the stream.
+     * @param out the stream to write to
+     */
+    public BitOutputStream(OutputStream out) {
+        this(Channels.newChannel(out));
+    }
+
+    /**
+     * Constructs a new BitOutputStream that writes to the given channel.
+     * Closing the BitOutputStream closes the channel.
+     * @param out the channel to write to
+     */
+    public BitOutputStream(WritableByteChannel out) {
+        this(out, 0);
+    }
+
+    /**
+     * Constructs a new BitOutputStream that writes to the given channel.
+     * Closing the BitOutputStream closes the channel.
+     * @param out the channel to write to
+     * @param writeBehind the number of full buffers that may be queued for
+     *        a background writer thread, or 0 to write on this thread
+     */
+    public BitOutputStream(WritableByteChannel out, int writeBehind) {
+        this(writeBehind > 0
+                ? new WriteBehindSink(out, WRITE_BEHIND_SIZE, writeBehind)
+                : new ChannelSink(out));
+    }
+
+    /**
+     * Constructs a new BitOutputStream that writes to the given sink.
+     * Closing the BitOutputStream closes the sink.
+     * @param out the sink to write to
+     */
+    BitOutputStream(ByteSink out) {
+        this.output = out;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /**
+     * Constructs a new BitOutputStream that writes straight into the given
+     * buffer, starting at its position, without an intermediate copy. The
+     * buffer may be direct, so output can be produced off-heap; a
+     * MemorySegment can be written through its asByteBuffer() view. On
+     * close the buffer's position is advanced past the bytes written.
+     * Writing more than the buffer holds throws BufferOverflowException.
+     * @param out the buffer to write to
+     */
+    public BitOutputStream(ByteBuffer out) {
+        this.target = out;
+        this.buffer = out.duplicate().order(ByteOrder.BIG_ENDIAN);
     }
 
     /**
@@ -43,48 +114,207 @@ public class BitOutputStream implements AutoCloseable {
     public void writeBit(int bit) {
         if (bit < 0 || bit > 1) {
             throw new IllegalArgumentException("Illegal bit: " + bit);
-        } else if (debug) {
-            output.print(bit);
+        }
+        writeBits(bit, 1);
+    }
+
+    /**
+     * Writes the lower n bits to the stream in big-endian style.
+     * @param value the bits to write as an integer
+     * @param n the number of bits to write from the integer (0--32)
+     */
+    public void writeBits(int value, int n) {
+        bits = (bits << n) | (value & ((1L << n) - 1));
+        count += n;
+        if (count >= Integer.SIZE) {
+            count -= Integer.SIZE;
+            if (buffer.remaining() >= Integer.BYTES) {
+                buffer.putInt((int) (bits >>> count));
+            } else {
+                count += Integer.SIZE;
+                putBytes();
+            }
+        }
+    }
+
+    /**
+     * Writes the first n bits of the remaining bytes of the given buffer,
+     * in big-endian style, wherever this stream is within a byte. The
+     * buffer's position is advanced past every byte the bits touch. At a
+     * byte boundary the bytes are copied in bulk; elsewhere they are shifted
+     * into place 32 bits at a time.
+     * @param src the bits to write
+     * @param n the number of bits to write
+     */
+    public void writeBits(ByteBuffer src, long n) {
+        if (n < 0 || n > 8L * src.remaining()) {
+            throw new IllegalArgumentException("Illegal bit count: " + n);
+        }
+        int end = src.position() + (int) (n / 8);
+        int rest = (int) (n % 8);
+        if (count % 8 == 0) {
+            int limit = src.limit();
+            src.limit(end);
+            writeBytes(src);
+            src.limit(limit);
         } else {
-            digits += bit << cursor;
-            cursor--;
-            if (cursor < 0) {
-                flush();
+            ByteBuffer words = src.duplicate().order(ByteOrder.BIG_ENDIAN);
+            int i = src.position();
+            for (; i + Integer.BYTES <= end; i += Integer.BYTES) {
+                writeBits(words.getInt(i), Integer.SIZE);
+            }
+            for (; i < end; i++) {
+                writeBits(words.get(i), 8);
             }
+            src.position(end);
+        }
+        if (rest > 0) {
+            writeBits((src.get() & 0xFF) >>> (8 - rest), rest);
         }
     }
 
     /**
-     * Writes the lower n bits to the stream in big-endian style.
-     * @param bits the bits to write as an integer
-     * @param n the number of bits to write from the integer
+     * Pads the output with 0s up to the next byte boundary.
      */
-    public void writeBits(int bits, int n) {
-        for (int i = n - 1; i >= 0; i--) {
-            writeBit((bits >>> i) % 2);
+    public void alignToByte() {
+        if (count % 8 != 0) {
+            writeBits(0, 8 - count % 8);
         }
     }
 
     /**
-     * Flushes the buffer. If numDigits < BYTE_SIZE, flush will pad the output
-     * with extra 0s in the least-significant bits so that a full byte is
-     * written to the file.
+     * Writes the remaining bytes of the given buffer in bulk, advancing its
+     * position to its limit.
+     * @param src the bytes to write
      */
-    private void flush() {
-        if (cursor == BYTE_SIZE - 1) {
+    public void writeBytes(ByteBuffer src) {
+        if (count % 8 != 0) {
+            while (src.hasRemaining()) {
+                writeBits(src.get(), 8);
+            }
             return;
         }
-        output.write(digits);
-        digits = 0;
-        cursor = BYTE_SIZE - 1;
+        putBytes();
+        while (src.hasRemaining()) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            int k = Math.min(src.remaining(), buffer.remaining());
+            buffer.put(buffer.position(), src, src.position(), k);
+            buffer.position(buffer.position() + k);
+            src.position(src.position() + k);
+        }
     }
 
-    /** Closes the stream, flushing any remaining bits to the file */
+    /**
+     * Copies a region of a file to the output. The stream must be at a byte
+     * boundary. When writing to a channel without write-behind, the bytes
+     * move with FileChannel.transferTo and never enter user space.
+     * @param src the file to copy from
+     * @param position the offset in src of the first byte to copy
+     * @param length the number of bytes to copy
+     */
+    public void transferFrom(FileChannel src, long position, long length) {
+        if (count % 8 != 0) {
+            throw new IllegalStateException("Not at a byte boundary.");
+        }
+        putBytes();
+        try {
+            if (output != null) {
+                if (buffer.position() > 0) {
+                    drain();
+                }
+                if (output.transferFrom(src, position, length)) {
+                    return;
+                }
+            }
+            while (length > 0) {
+                if (!buffer.hasRemaining()) {
+                    drain();
+                }
+                int k = (int) Math.min(length, buffer.remaining());
+                int n = src.read(buffer.slice(buffer.position(), k), position);
+                if (n < 0) {
+                    throw new EOFException("Unexpected end of input.");
+                }
+                buffer.position(buffer.position() + n);
+                position += n;
+                length -= n;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e.toString());
+        }
+    }
+
+    /** Moves every whole pending byte of the register into the buffer. */
+    private void putBytes() {
+        while (count >= 8) {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            count -= 8;
+            buffer.put((byte) (bits >>> count));
+        }
+    }
+
+    /** Writes the buffered bytes out to the file. */
+    private void drain() {
+        if (output == null) {
+            throw new BufferOverflowException();
+        }
+        buffer.flip();
+        try {
+            buffer = output.drain(buffer);
+        } catch (IOException e) {
+            throw new RuntimeException(e.toString());
+        }
+    }
+
+    /**
+     * @return the total time, in nanoseconds, this stream has spent waiting
+     *         for its underlying output
+     */
+    public long getStallNanos() {
+        return output == null ? 0 : output.stallNanos();
+    }
+
+    /**
+     * Flushes the register. If the number of pending bits is not a multiple
+     * of 8, flush will pad the output with extra 0s in the least-significant
+     * bits so that a full byte is written to the file.
+     */
+    private void flush() {
+        if (count % 8 != 0) {
+            writeBits(0, 8 - count % 8);
+        }
+        putBytes();
+    }
+
+    /**
+     * Closes the stream, flushing any remaining bits to the file. With
+     * write-behind this waits for every queued buffer to be written and
+     * reports any write that failed along the way. Closing a closed stream
+     * has no effect.
+     */
     @Override
     public void close() {
-        if (cursor >= 0) {
-            flush();
+        if (closed) {
+            return;
+        }
+        closed = true;
+        flush();
+        if (output == null) {
+            target.position(buffer.position());
+            return;
+        }
+        try {
+            drain();
+        } finally {
+            try {
+                output.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e.toString());
+            }
         }
-        output.close();
     }
 }
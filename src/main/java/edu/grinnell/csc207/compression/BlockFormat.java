@@ -0,0 +1,514 @@
+package edu.grinnell.csc207.compression;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Reads and writes version 2 .grin files, which cut the input into blocks
+ * that are each either Huffman-coded with their own tree or stored as-is.
+ * The trees are canonical, so each is written as just its code
+ * lengths (see HuffmanTree.writeCodeLengths); that header is a good deal
+ * smaller than the shape of the tree, which matters most for small files.
+ * Blocks can also be split into four streams of codes that decode in step
+ * (STREAMS blocks), which is faster to decode but a little larger.
+ * Storing a block costs nine bytes of header over its raw size, so input
+ * that Huffman coding cannot shrink, such as data that is already
+ * compressed, is copied through from the block already read at close to
+ * the speed of a file copy.
+ * Since blocks are independent, they can also be encoded on several
+ * threads at once; the output is the same whatever the number of threads.
+ *
+ * The layout is the 32-bit MAGIC, 8 bits of 0x80 plus the container
+ * VERSION, a sequence of blocks each starting on a byte boundary, an END
+ * block, and then the block index (see BlockIndex), which gives the offset
+ * of every block so that blocks can be found without reading the ones
+ * before them. Each block is laid out as
+ * <pre>
+ *   8 bits   block type (END, STORED, CANONICAL or STREAMS)
+ *   32 bits  original length in bytes       (not present for END)
+ *   32 bits  length of the payload in bytes (not present for END)
+ *   payload  STORED: the original bytes
+ *            CANONICAL: the code lengths of a canonical tree (see
+ *            HuffmanTree.writeCodeLengths) and the codes of the original
+ *            bytes ending with EOF, padded with 0s to a byte boundary
+ *            STREAMS: the code lengths of a canonical tree with codes of
+ *            at most HuffmanTree.STREAM_CODE_LIMIT bits, padded to a byte
+ *            boundary; the 32-bit lengths in bytes of the first three
+ *            streams; then the four streams, each padded to a byte
+ *            boundary. Stream k holds the codes, without EOF, of the k-th
+ *            quarter of the block: bytes k * q up to (k + 1) * q, where q
+ *            is the block's original length divided by 4, rounded up.
+ * </pre>
+ */
+final class BlockFormat {
+    static final int MAGIC = 0x737;
+
+    private static final int END = 0;
+    private static final int STORED = 1;
+    private static final int CANONICAL = 2;
+    private static final int STREAMS = 3;
+
+    static final int VERSION = 1;
+    static final int VERSION_BYTE = 0x80 | VERSION;
+    static final int HEADER_SIZE = 5;  // bytes of MAGIC and version
+    private static final int BLOCK_HEADER_SIZE = 9;  // bytes before a payload
+
+    private static final int BLOCK_SIZE = 1 << 20;  // original bytes per block
+
+    private BlockFormat() {
+    }
+
+    /**
+     * Encodes the rest of the given stream as a version 2 .grin stream.
+     * @param in the stream to encode
+     * @param out the stream to write the output to
+     * @param options the settings to encode with
+     */
+    static void encode(BitInputStream in, BitOutputStream out, Options options) {
+        out.writeBits(MAGIC, 32);
+        out.writeBits(VERSION_BYTE, 8);
+
+        BlockIndex index = new BlockIndex();
+        long offset = HEADER_SIZE;  // offset of the next block in the output
+        if (options.isParallel()) {
+            offset = encodeParallel(in, out, options, index, offset);
+        } else {
+            byte[] block = new byte[BLOCK_SIZE];
+            while (true) {
+                int length = in.readBytes(block, 0, BLOCK_SIZE);
+                if (length == 0) {
+                    break;
+                }
+                index.add(offset, length);
+                offset += BLOCK_HEADER_SIZE + encodeBlock(block, length, out, options);
+            }
+        }
+        out.writeBits(END, 8);
+        index.write(out, offset + 1);
+    }
+
+    /** A block being encoded on another thread. */
+    private static final class PendingBlock {
+        final byte[] block;
+        final int length;
+        final ForkJoinTask<ByteBuffer> encoded;
+
+        PendingBlock(byte[] block, int length, ForkJoinTask<ByteBuffer> encoded) {
+            this.block = block;
+            this.length = length;
+            this.encoded = encoded;
+        }
+    }
+
+    /**
+     * Encodes blocks on the thread pool of the given options. This thread
+     * reads the blocks and writes them out in order as they are finished,
+     * keeping at most two per thread in flight.
+     * @param in the stream to encode
+     * @param out the stream to write the blocks to
+     * @param options the settings to encode with
+     * @param index the index to add each block to
+     * @param offset the offset in the output of the first block
+     * @return the offset in the output just past the last block
+     */
+    private static long encodeParallel(BitInputStream in, BitOutputStream out,
+            Options options, BlockIndex index, long offset) {
+        ForkJoinPool pool = options.openPool();
+        try {
+            int window = 2 * pool.getParallelism();
+            ArrayDeque<PendingBlock> pending = new ArrayDeque<>();
+            ArrayDeque<byte[]> free = new ArrayDeque<>();
+            while (true) {
+                byte[] block = free.isEmpty() ? new byte[BLOCK_SIZE] : free.pop();
+                int length = in.readBytes(block, 0, BLOCK_SIZE);
+                if (length == 0) {
+                    break;
+                }
+                pending.add(new PendingBlock(block, length,
+                        pool.submit(() -> encodeBlock(block, length, options))));
+                if (pending.size() >= window) {
+                    offset = writeNext(pending, free, out, index, offset);
+                }
+            }
+            while (!pending.isEmpty()) {
+                offset = writeNext(pending, free, out, index, offset);
+            }
+            return offset;
+        } finally {
+            options.closePool(pool);
+        }
+    }
+
+    /**
+     * Waits for the oldest pending block to be encoded and writes it out,
+     * returning its input buffer to the free list.
+     * @param pending the blocks being encoded, oldest first
+     * @param free the input buffers ready to be reused
+     * @param out the stream to write the block to
+     * @param index the index to add the block to
+     * @param offset the offset in the output of the block
+     * @return the offset in the output just past the block
+     */
+    private static long writeNext(ArrayDeque<PendingBlock> pending, ArrayDeque<byte[]> free,
+            BitOutputStream out, BlockIndex index, long offset) {
+        PendingBlock next = pending.remove();
+        ByteBuffer encoded = next.encoded.join();
+        index.add(offset, next.length);
+        offset += encoded.remaining();
+        out.writeBytes(encoded);
+        free.push(next.block);
+        return offset;
+    }
+
+    /**
+     * Encodes a block into a buffer of its own, exactly as encode would
+     * write it.
+     * @param block the bytes of the block
+     * @param length the number of bytes in the block
+     * @param options the settings to encode with
+     * @return the encoded block, header included, ready to be read
+     */
+    private static ByteBuffer encodeBlock(byte[] block, int length, Options options) {
+        ByteBuffer buffer = ByteBuffer.allocate(BLOCK_HEADER_SIZE + length);
+        try (BitOutputStream out = new BitOutputStream(buffer)) {
+            encodeBlock(block, length, out, options);
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Writes a block in the smallest of the types options allow.
+     * @param block the bytes of the block
+     * @param length the number of bytes in the block
+     * @param out the stream to write the block to, at a byte boundary
+     * @param options the settings to encode with
+     * @return the length of the block's payload in bytes
+     */
+    private static long encodeBlock(byte[] block, int length, BitOutputStream out,
+            Options options) {
+        if (options.isInterleaved()) {
+            return encodeStreams(block, length, out, options);
+        }
+        Histogram histogram = new Histogram();
+        histogram.count(block, 0, length);
+        long[] counts = histogram.toArray();
+        HuffmanTree ht = HuffmanTree.canonical(counts, options.getMaxCodeLength());
+        long payload = (ht.codeLengthsBits() + ht.encodedBits(counts) + 7) / 8;
+
+        if (payload >= length) {
+            return writeStored(block, length, out);
+        }
+        writeHeader(out, CANONICAL, length, payload);
+        ht.writeCodeLengths(out);
+        ht.encode(new BitInputStream(ByteBuffer.wrap(block, 0, length)), out);
+        out.alignToByte();
+        return payload;
+    }
+
+    /**
+     * Writes a block as a STREAMS block, or as a STORED block if that is no
+     * larger.
+     * @param block the bytes of the block
+     * @param length the number of bytes in the block
+     * @param out the stream to write the block to, at a byte boundary
+     * @param options the settings to encode with
+     * @return the length of the block's payload in bytes
+     */
+    private static long encodeStreams(byte[] block, int length, BitOutputStream out,
+            Options options) {
+        int quarter = (length + 3) / 4;
+        long[][] parts = new long[4][];
+        Histogram histogram = new Histogram();
+        for (int k = 0; k < 4; k++) {
+            Histogram part = new Histogram();
+            part.count(block, streamStart(k, quarter, length), streamSize(k, quarter, length));
+            parts[k] = part.toArray();
+            histogram.add(part);
+        }
+        int limit = options.getMaxCodeLength();
+        if (limit == 0 || limit > HuffmanTree.STREAM_CODE_LIMIT) {
+            limit = HuffmanTree.STREAM_CODE_LIMIT;
+        }
+        HuffmanTree ht = HuffmanTree.canonical(histogram.toArray(), limit);
+        long payload = (ht.codeLengthsBits() + 7) / 8 + 3 * 4;
+        long[] sizes = new long[4];
+        for (int k = 0; k < 4; k++) {
+            sizes[k] = (ht.codeBits(parts[k]) + 7) / 8;
+            payload += sizes[k];
+        }
+
+        if (payload >= length) {
+            return writeStored(block, length, out);
+        }
+        writeHeader(out, STREAMS, length, payload);
+        ht.writeCodeLengths(out);
+        out.alignToByte();
+        for (int k = 0; k < 3; k++) {
+            out.writeBits((int) sizes[k], 32);
+        }
+        for (int k = 0; k < 4; k++) {
+            ht.encode(block, streamStart(k, quarter, length), streamSize(k, quarter, length),
+                    out);
+            out.alignToByte();
+        }
+        return payload;
+    }
+
+    private static int streamStart(int k, int quarter, int length) {
+        return Math.min(k * quarter, length);
+    }
+
+    private static int streamSize(int k, int quarter, int length) {
+        return streamStart(k + 1, quarter, length) - streamStart(k, quarter, length);
+    }
+
+    private static long writeStored(byte[] block, int length, BitOutputStream out) {
+        writeHeader(out, STORED, length, length);
+        out.writeBytes(ByteBuffer.wrap(block, 0, length));
+        return length;
+    }
+
+    private static void writeHeader(BitOutputStream out, int type, int length,
+            long payload) {
+        out.writeBits(type, 8);
+        out.writeBits(length, 32);
+        out.writeBits((int) payload, 32);
+    }
+
+    /**
+     * Decodes the blocks of a version 2 .grin stream whose magic number has
+     * already been read.
+     * @param in the stream to decode
+     * @param out the stream to write the output to
+     * @param options the settings to decode with
+     */
+    static void decode(BitInputStream in, BitOutputStream out, Options options) {
+        // The index is rebuilt from the blocks as they go by, to check the
+        // one at the end of the stream against.
+        BlockIndex index = new BlockIndex();
+        long offset = HEADER_SIZE;  // offset of the next block in the input
+        for (int type = readFirstType(in); type != END; type = in.readBits(8)) {
+            int length = in.readBits(32);
+            int payload = in.readBits(32);
+            index.add(offset, length);
+            decodeBlock(in, type, length, payload, out, options);
+            offset += BLOCK_HEADER_SIZE + (payload & 0xFFFFFFFFL);
+        }
+        index.check(in, offset + 1);
+    }
+
+    /**
+     * Decodes the payload of a block whose header has already been read.
+     * @param in the stream to decode, at the start of the payload
+     * @param type the type of the block
+     * @param length the original length of the block
+     * @param payload the length of the payload in bytes
+     * @param out the stream to write the output to
+     * @param options the settings to decode with
+     */
+    private static void decodeBlock(BitInputStream in, int type, int length, int payload,
+            BitOutputStream out, Options options) {
+        if (type == STORED && payload == length) {
+            if (in.copyBytes(length, out) != length) {
+                throw new IllegalArgumentException("Not a valid .grin file.");
+            }
+        } else if (type == STREAMS && length <= BLOCK_SIZE && payload >= 0
+                && payload < length) {
+            // Checked before decodeStreams allocates the block and its
+            // payload; the encoder only writes a STREAMS block that is
+            // smaller than the block stored would be.
+            decodeStreams(in, out, length, payload);
+        } else if (type == CANONICAL) {
+            HuffmanTree ht = HuffmanTree.readCodeLengths(in);
+            if (ht.decode(in, out, options.getDecodeTableBits(), options.getDecodeSymbols())
+                    != length) {
+                throw new IllegalArgumentException("Not a valid .grin file.");
+            }
+            in.alignToByte();
+        } else {
+            throw new IllegalArgumentException("Not a valid .grin file.");
+        }
+    }
+
+    /**
+     * Decodes a version 2 .grin file on the thread pool of the given options.
+     * The index gives where each block starts in the input and where its
+     * output goes, so every block is read, decoded and written at its own
+     * position by a task of its own, in any order. This thread only keeps
+     * at most two blocks per thread in flight and reports the first
+     * failure.
+     * @param in the file to decode
+     * @param index the index of the file
+     * @param out the file to write the output to, which should be empty
+     * @param options the settings to decode with
+     * @throws IOException if either file cannot be read or written
+     */
+    static void decode(FileChannel in, BlockIndex index, FileChannel out, Options options)
+            throws IOException {
+        long total = index.decodedLength();
+        if (total > 0) {
+            // Give the output its final size up front rather than growing it
+            // block by block from several threads.
+            out.write(ByteBuffer.allocate(1), total - 1);
+        }
+        ForkJoinPool pool = options.openPool();
+        try {
+            int window = 2 * pool.getParallelism();
+            ArrayDeque<ForkJoinTask<?>> pending = new ArrayDeque<>();
+            long position = 0;  // offset of the block within the output
+            for (int i = 0; i < index.size(); i++) {
+                long offset = index.offset(i);
+                int length = index.length(i);
+                long payload = index.span(i) - BLOCK_HEADER_SIZE;
+                long target = position;
+                pending.add(pool.submit(() -> {
+                    decodeBlock(in, offset, length, payload, out, target, options);
+                    return null;
+                }));
+                if (pending.size() >= window) {
+                    pending.remove().join();
+                }
+                position += length;
+            }
+            while (!pending.isEmpty()) {
+                pending.remove().join();
+            }
+        } finally {
+            options.closePool(pool);
+        }
+    }
+
+    /**
+     * Decodes the block at the given offset of a file and writes it at the
+     * given position of another. The lengths come from the index, and the
+     * block's header must agree with them before anything is allocated, so
+     * a corrupt file fails just as it would when decoded sequentially.
+     * @param in the file to decode
+     * @param offset the offset of the block in the file
+     * @param length the original length of the block in bytes
+     * @param payload the length of the block's payload in bytes, as far
+     *        as where the next block starts
+     * @param out the file to write the output to
+     * @param position the offset in out at which to write the block
+     * @param options the settings to decode with
+     */
+    private static void decodeBlock(FileChannel in, long offset, int length, long payload,
+            FileChannel out, long position, Options options) {
+        if (length > BLOCK_SIZE || payload < 0 || payload > length) {
+            // Every block the encoder writes is at most BLOCK_SIZE bytes,
+            // and no payload is larger than the block stored.
+            throw new IllegalArgumentException("Not a valid .grin file.");
+        }
+        try {
+            ByteBuffer header = BlockIndex.readFully(in, offset, BLOCK_HEADER_SIZE);
+            int type = header.get(0) & 0xFF;
+            if (type == END || header.getInt(1) != length || header.getInt(5) != payload) {
+                throw new IllegalArgumentException("Not a valid .grin file.");
+            }
+            ByteBuffer block = BlockIndex.readFully(in, offset + BLOCK_HEADER_SIZE,
+                    (int) payload);
+            ByteBuffer decoded = ByteBuffer.allocate(length);
+            try (BitInputStream src = new BitInputStream(block);
+                 BitOutputStream dst = new BitOutputStream(decoded)) {
+                decodeBlock(src, type, length, (int) payload, dst, options);
+            } catch (BufferOverflowException e) {
+                throw new IllegalArgumentException("Not a valid .grin file.");
+            }
+            if (decoded.hasRemaining()) {
+                throw new IllegalArgumentException("Not a valid .grin file.");
+            }
+            decoded.flip();
+            while (decoded.hasRemaining()) {
+                out.write(decoded, position + decoded.position());
+            }
+        } catch (EOFException e) {
+            throw new IllegalArgumentException("Not a valid .grin file.");
+        } catch (IOException e) {
+            throw new RuntimeException(e.toString());
+        }
+    }
+
+    /**
+     * Checks the version byte and reads the type of the first block.
+     * @param in the stream to decode, just past the magic number
+     * @return the type of the first block
+     * @throws IllegalArgumentException if the version is not supported
+     */
+    private static int readFirstType(BitInputStream in) {
+        int version = in.readBits(8);
+        if (version != VERSION_BYTE) {
+            if (version >= 0x80) {
+                throw new IllegalArgumentException("Unsupported .grin version: "
+                        + (version - 0x80));
+            }
+            throw new IllegalArgumentException("Not a valid .grin file.");
+        }
+        return in.readBits(8);
+    }
+
+    /**
+     * Decodes the payload of a STREAMS block.
+     * @param in the stream to decode, at the start of the payload
+     * @param out the stream to write the output to
+     * @param length the original length of the block, at most BLOCK_SIZE
+     * @param payload the length of the payload in bytes, less than length
+     */
+    private static void decodeStreams(BitInputStream in, BitOutputStream out, int length,
+            int payload) {
+        HuffmanTree ht = HuffmanTree.readCodeLengths(in);
+        in.alignToByte();
+        int[] bounds = new int[5];
+        for (int k = 0; k < 3; k++) {
+            int size = in.readBits(32);
+            if (size < 0) {
+                throw new IllegalArgumentException("Not a valid .grin file.");
+            }
+            bounds[k + 1] = bounds[k] + size;
+        }
+        bounds[4] = payload - (ht.codeLengthsBits() + 7) / 8 - 3 * 4;
+        if (bounds[4] < bounds[3] || bounds[3] < 0) {
+            throw new IllegalArgumentException("Not a valid .grin file.");
+        }
+        byte[] src = new byte[bounds[4]];
+        if (in.readBytes(src, 0, src.length) != src.length) {
+            throw new IllegalArgumentException("Not a valid .grin file.");
+        }
+
+        int quarter = (length + 3) / 4;
+        int[] sizes = new int[4];
+        for (int k = 0; k < 4; k++) {
+            sizes[k] = streamSize(k, quarter, length);
+        }
+        byte[] dst = new byte[length];
+        ht.decodeStreams(src, bounds, dst, sizes);
+        out.writeBytes(ByteBuffer.wrap(dst));
+    }
+
+    /**
+     * Adds up the original lengths of the blocks of a version 2 .grin
+     * stream whose magic number has already been read, skipping over the
+     * payloads without decoding them.
+     * @param in the stream to measure
+     * @return the number of bytes decode would produce
+     */
+    static long decodedLength(BitInputStream in) {
+        long total = 0;
+        for (int type = readFirstType(in); ; type = in.readBits(8)) {
+            if (type == END) {
+                return total;
+            }
+            int length = in.readBits(32);
+            int payload = in.readBits(32);
+            if (type == -1 || length == -1 || in.skipBytes(payload) != payload) {
+                throw new IllegalArgumentException("Not a valid .grin file.");
+            }
+            total += length;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package edu.grinnell.csc207.compression;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * The index at the end of a version 2 .grin file, which gives the offset
+ * and original length of every block. It is laid out as
+ * <pre>
+ *   for each block:
+ *     64 bits  offset of the block from the start of the file
+ *     32 bits  original length of the block in bytes
+ *   then a trailer:
+ *     64 bits  offset of the index from the start of the file
+ *     32 bits  number of blocks
+ *     32 bits  BlockFormat.MAGIC
+ * </pre>
+ * The trailer has a fixed size, so a reader that can seek finds the index
+ * from the end of the file without reading any blocks.
+ */
+final class BlockIndex {
+    static final int ENTRY_SIZE = 12;
+    static final int TRAILER_SIZE = 16;
+
+    private long[] offsets;
+    private int[] lengths;
+    private int size;
+    private long indexOffset;  // where the index starts, if it was read
+
+    /** Constructs an empty index, to which an encoder adds its blocks. */
+    BlockIndex() {
+        this(new long[16], new int[16], 0, 0);
+    }
+
+    private BlockIndex(long[] offsets, int[] lengths, int size, long indexOffset) {
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.size = size;
+        this.indexOffset = indexOffset;
+    }
+
+    /**
+     * Adds a block to the end of the index.
+     * @param offset the offset of the block from the start of the file
+     * @param length the original length of the block in bytes
+     */
+    void add(long offset, int length) {
+        if (size == offsets.length) {
+            offsets = Arrays.copyOf(offsets, 2 * size);
+            lengths = Arrays.copyOf(lengths, 2 * size);
+        }
+        offsets[size] = offset;
+        lengths[size++] = length;
+    }
+
+    /** @return the number of blocks */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param i the number of a block, counting from 0
+     * @return the offset of the block from the start of the file
+     */
+    long offset(int i) {
+        return offsets[i];
+    }
+
+    /**
+     * @param i the number of a block, counting from 0
+     * @return the original length of the block in bytes
+     */
+    int length(int i) {
+        return lengths[i];
+    }
+
+    /**
+     * Finds how many bytes a block takes up in the file, header included,
+     * from where the next block starts or, for the last block, from where
+     * the END block before the index is. Only an index read from a file
+     * knows where the last block ends.
+     * @param i the number of a block, counting from 0
+     * @return the length of the block in the file in bytes
+     */
+    long span(int i) {
+        return (i + 1 < size ? offsets[i + 1] : indexOffset - 1) - offsets[i];
+    }
+
+    /** @return the total original length of the blocks */
+    long decodedLength() {
+        long total = 0;
+        for (int i = 0; i < size; i++) {
+            total += lengths[i];
+        }
+        return total;
+    }
+
+    /**
+     * Writes the index and trailer.
+     * @param out the stream to write to, at a byte boundary
+     * @param indexOffset the offset from the start of the file at which
+     *        the index is written
+     */
+    void write(BitOutputStream out, long indexOffset) {
+        for (int i = 0; i < size; i++) {
+            writeLong(out, offsets[i]);
+            out.writeBits(lengths[i], 32);
+        }
+        writeLong(out, indexOffset);
+        out.writeBits(size, 32);
+        out.writeBits(BlockFormat.MAGIC, 32);
+    }
+
+    /**
+     * Reads an index and trailer and checks that they match this index,
+     * which a decoder has built up from the blocks it has read, and that
+     * nothing follows them.
+     * @param in the stream to read, just past the END block
+     * @param indexOffset the offset from the start of the file at which
+     *        the index should be
+     * @throws IllegalArgumentException if they do not match
+     */
+    void check(BitInputStream in, long indexOffset) {
+        for (int i = 0; i < size; i++) {
+            if (readLong(in) != offsets[i] || in.readBits(32) != lengths[i]) {
+                throw new IllegalArgumentException("Not a valid .grin file.");
+            }
+        }
+        if (readLong(in) != indexOffset || in.readBits(32) != size
+                || in.readBits(32) != BlockFormat.MAGIC || in.hasBits()) {
+            throw new IllegalArgumentException("Not a valid .grin file.");
+        }
+    }
+
+    private static long readLong(BitInputStream in) {
+        long high = in.readBits(32);
+        return high << 32 | in.readBits(32) & 0xFFFFFFFFL;
+    }
+
+    private static void writeLong(BitOutputStream out, long value) {
+        out.writeBits((int) (value >>> 32), 32);
+        out.writeBits((int) value, 32);
+    }
+
+    /**
+     * Reads the index of the .grin contents remaining in src, leaving its
+     * position unchanged.
+     * @param src the contents of a .grin file
+     * @return the index, or null if the contents are not version 2
+     */
+    static BlockIndex read(ByteBuffer src) {
+        ByteBuffer file = src.slice().order(ByteOrder.BIG_ENDIAN);
+        int n = file.remaining();
+        if (n < BlockFormat.HEADER_SIZE + 1 + TRAILER_SIZE
+                || file.getInt(0) != BlockFormat.MAGIC
+                || (file.get(4) & 0xFF) != BlockFormat.VERSION_BYTE) {
+            return null;
+        }
+        long indexOffset = file.getLong(n - TRAILER_SIZE);
+        int count = file.getInt(n - TRAILER_SIZE + 8);
+        checkTrailer(indexOffset, count, file.getInt(n - 4), n);
+        return parse(file.slice((int) indexOffset, count * ENTRY_SIZE), count, indexOffset);
+    }
+
+    /**
+     * Reads the index of a .grin file.
+     * @param file the file to read, which is left at its current position
+     * @return the index, or null if the file is not version 2
+     * @throws IOException if the file cannot be read
+     */
+    static BlockIndex read(FileChannel file) throws IOException {
+        long n = file.size();
+        if (n < BlockFormat.HEADER_SIZE + 1 + TRAILER_SIZE) {
+            return null;
+        }
+        ByteBuffer header = readFully(file, 0, BlockFormat.HEADER_SIZE);
+        if (header.getInt(0) != BlockFormat.MAGIC
+                || (header.get(4) & 0xFF) != BlockFormat.VERSION_BYTE) {
+            return null;
+        }
+        ByteBuffer trailer = readFully(file, n - TRAILER_SIZE, TRAILER_SIZE);
+        long indexOffset = trailer.getLong(0);
+        int count = trailer.getInt(8);
+        checkTrailer(indexOffset, count, trailer.getInt(12), n);
+        return parse(readFully(file, indexOffset, count * ENTRY_SIZE), count, indexOffset);
+    }
+
+    private static void checkTrailer(long indexOffset, int count, int magic, long n) {
+        if (magic != BlockFormat.MAGIC || count < 0 || indexOffset <= BlockFormat.HEADER_SIZE
+                || indexOffset + (long) count * ENTRY_SIZE + TRAILER_SIZE != n) {
+            throw new IllegalArgumentException("Not a valid .grin file.");
+        }
+    }
+
+    private static BlockIndex parse(ByteBuffer entries, int count, long indexOffset) {
+        long[] offsets = new long[Math.max(count, 1)];
+        int[] lengths = new int[Math.max(count, 1)];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = entries.getLong(i * ENTRY_SIZE);
+            lengths[i] = entries.getInt(i * ENTRY_SIZE + 8);
+            if (lengths[i] < 0 || offsets[i] < BlockFormat.HEADER_SIZE
+                    || i > 0 && offsets[i] <= offsets[i - 1]) {
+                throw new IllegalArgumentException("Not a valid .grin file.");
+            }
+        }
+        return new BlockIndex(offsets, lengths, count, indexOffset);
+    }
+
+    /**
+     * Reads bytes from the given position of a file, without moving it.
+     * @param file the file to read
+     * @param position the offset of the first byte to read
+     * @param length the number of bytes to read
+     * @return a buffer of the bytes read, ready to get them
+     * @throws IOException if the file cannot be read or ends too soon
+     */
+    static ByteBuffer readFully(FileChannel file, long position, int length)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of input.");
+            }
+        }
+        return buffer.flip();
+    }
+}
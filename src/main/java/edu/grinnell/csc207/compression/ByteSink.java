@@ -0,0 +1,53 @@
+package edu.grinnell.csc207.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A ByteSink takes the output of a BitOutputStream one buffer at a time.
+ */
+interface ByteSink extends AutoCloseable {
+
+    /**
+     * Takes a buffer of output. The buffer is ready to be read from its
+     * position to its limit and belongs to the sink afterwards.
+     * @param full the buffer of output
+     * @return an empty buffer for the stream to fill next
+     * @throws IOException if the underlying output cannot be written
+     */
+    ByteBuffer drain(ByteBuffer full) throws IOException;
+
+    /**
+     * Copies a region of a file straight to the output, bypassing the
+     * buffers, if the sink can do that cheaply. Only called once every
+     * buffer drained so far has been handed over.
+     * @param src the file to copy from
+     * @param position the offset in src of the first byte to copy
+     * @param count the number of bytes to copy
+     * @return true if the bytes were copied, false if the caller must copy
+     *         them through its buffers instead
+     * @throws IOException if the file or the output cannot be accessed
+     */
+    default boolean transferFrom(FileChannel src, long position, long count)
+            throws IOException {
+        return false;
+    }
+
+    /**
+     * @return the total time, in nanoseconds, that drain has spent waiting
+     *         for the underlying output
+     */
+    default long stallNanos() {
+        return 0;
+    }
+
+    /**
+     * Finishes writing everything drained so far and releases the
+     * underlying output.
+     * @throws IOException if the underlying output cannot be written or
+     *         closed
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,49 @@
+package edu.grinnell.csc207.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A ByteSource hands a BitInputStream its input one buffer at a time.
+ */
+interface ByteSource extends AutoCloseable {
+
+    /**
+     * Produces the next buffer of input. The returned buffer is ready to
+     * be read from its position to its limit.
+     * @param used the buffer the stream has finished reading, which the
+     *        source may refill and hand back
+     * @return the next buffer of input, or null if the input is exhausted
+     * @throws IOException if the underlying input cannot be read
+     */
+    ByteBuffer next(ByteBuffer used) throws IOException;
+
+    /**
+     * Copies up to count bytes that have not been handed out yet straight
+     * to the given output, bypassing the buffers, if the source can do
+     * that cheaply. Only called once the last buffer from next has been
+     * used up.
+     * @param count the number of bytes to copy
+     * @param out the stream to copy to
+     * @return the number of bytes copied, possibly 0
+     * @throws IOException if the underlying input cannot be read
+     */
+    default long transferTo(long count, BitOutputStream out) throws IOException {
+        return 0;
+    }
+
+    /**
+     * @return the total time, in nanoseconds, that next has spent waiting
+     *         for the underlying input
+     */
+    default long stallNanos() {
+        return 0;
+    }
+
+    /**
+     * Releases the underlying input.
+     * @throws IOException if the underlying input cannot be closed
+     */
+    @Override
+    void close() throws IOException;
+}
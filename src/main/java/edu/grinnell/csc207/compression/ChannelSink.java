@@ -0,0 +1,60 @@
+package edu.grinnell.csc207.compression;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A ChannelSink writes each buffer to a channel as soon as it is drained.
+ */
+class ChannelSink implements ByteSink {
+    private final WritableByteChannel channel;
+    private long stallNanos;  // time spent blocked in write
+
+    /**
+     * Constructs a new ChannelSink over the given channel.
+     * @param channel the channel to write to
+     */
+    ChannelSink(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    @Override
+    public ByteBuffer drain(ByteBuffer full) throws IOException {
+        long start = System.nanoTime();
+        while (full.hasRemaining()) {
+            channel.write(full);
+        }
+        stallNanos += System.nanoTime() - start;
+        full.clear();
+        return full;
+    }
+
+    @Override
+    public boolean transferFrom(FileChannel src, long position, long count)
+            throws IOException {
+        long start = System.nanoTime();
+        while (count > 0) {
+            long n = src.transferTo(position, count, channel);
+            if (n == 0 && position >= src.size()) {
+                throw new EOFException("Unexpected end of input.");
+            }
+            position += n;
+            count -= n;
+        }
+        stallNanos += System.nanoTime() - start;
+        return true;
+    }
+
+    @Override
+    public long stallNanos() {
+        return stallNanos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,96 @@
+package edu.grinnell.csc207.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A ChannelSource reads its input from a channel into a single reusable
+ * heap buffer.
+ */
+class ChannelSource implements ByteSource {
+    private final ReadableByteChannel channel;
+    private final FileChannel file;  // channel, if it can be read at any position
+    private final ByteBuffer buffer;
+    private long stallNanos;  // time spent blocked in read
+
+    /**
+     * Constructs a new ChannelSource over the given channel, which is read
+     * by position only if it is a FileChannel that can report its position
+     * and size.
+     * @param channel the channel to read from
+     * @param size the number of bytes to read at a time
+     */
+    ChannelSource(ReadableByteChannel channel, int size) {
+        this(channel, size, isPositional(channel));
+    }
+
+    /**
+     * Constructs a new ChannelSource over the given channel.
+     * @param channel the channel to read from
+     * @param size the number of bytes to read at a time
+     * @param positional whether channel is a FileChannel over a regular
+     *        file, whose bytes transferTo can copy by position; pipes and
+     *        devices opened by name cannot be
+     */
+    ChannelSource(ReadableByteChannel channel, int size, boolean positional) {
+        this.channel = channel;
+        this.file = positional ? (FileChannel) channel : null;
+        this.buffer = ByteBuffer.allocate(size);
+    }
+
+    /**
+     * @param channel the channel to probe
+     * @return true iff channel is a FileChannel whose position and size can
+     *         be found; one over a pipe, such as standard input, cannot
+     */
+    private static boolean isPositional(ReadableByteChannel channel) {
+        if (!(channel instanceof FileChannel)) {
+            return false;
+        }
+        try {
+            FileChannel file = (FileChannel) channel;
+            file.position();
+            file.size();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public ByteBuffer next(ByteBuffer used) throws IOException {
+        buffer.clear();
+        long start = System.nanoTime();
+        int n;
+        do {
+            n = channel.read(buffer);
+        } while (n == 0);
+        stallNanos += System.nanoTime() - start;
+        buffer.flip();
+        return buffer.hasRemaining() ? buffer : null;
+    }
+
+    @Override
+    public long transferTo(long count, BitOutputStream out) throws IOException {
+        if (file == null) {
+            return 0;
+        }
+        long position = file.position();
+        long length = Math.min(count, file.size() - position);
+        out.transferFrom(file, position, length);
+        file.position(position + length);
+        return length;
+    }
+
+    @Override
+    public long stallNanos() {
+        return stallNanos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
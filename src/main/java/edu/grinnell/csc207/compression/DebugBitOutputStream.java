@@ -0,0 +1,28 @@
+package edu.grinnell.csc207.compression;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A DebugBitOutputStream writes each bit to a file as an ASCII '0' or '1'
+ * rather than packing the bits into bytes, which makes the output easy to
+ * inspect by hand. It is an ordinary BitOutputStream whose packed bytes
+ * are spelled out by an AsciiSink on their way to the file, so none of
+ * the writing methods change. As in a packed file, a final partial byte
+ * is padded with 0s.
+ */
+public class DebugBitOutputStream extends BitOutputStream {
+
+    /**
+     * Constructs a new DebugBitOutputStream attached to the given file.
+     * @param file the file to write to
+     * @throws IOException if the file cannot be opened
+     */
+    public DebugBitOutputStream(String file) throws IOException {
+        super(new AsciiSink(new ChannelSink(FileChannel.open(Paths.get(file),
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING))));
+    }
+}
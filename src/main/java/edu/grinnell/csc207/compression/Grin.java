@@ -1,13 +1,32 @@
 package edu.grinnell.csc207.compression;
 
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 /**
- * The driver for the Grin compression program.
+ * The driver for the Grin compression program. Wherever a file name is
+ * expected, "-" stands for standard input or standard output.
+ *
+ * Two formats are understood. Version 1 is a single Huffman tree followed
+ * by a single code stream; version 2 (see BlockFormat) cuts the input into
+ * blocks that are each Huffman-coded or stored as-is. Encoding writes
+ * version 1 unless told otherwise, and decoding accepts either. Version 2
+ * is encoded in a single pass over the input; version 1 needs the byte
+ * frequencies of the whole input before it can write anything, so it
+ * either reads the input twice or holds on to it (see SpillBuffer).
  */
 public class Grin {
     private static final int MAGIC = 0x736;
+    private static final String STDIO = "-";
 
     /**
      * Decodes the .grin file denoted by infile and writes the output to the
@@ -16,19 +35,93 @@ public class Grin {
      * @param outfile the file to ouptut to
      */
     public static void decode(String infile, String outfile) throws IOException {
-        try (BitInputStream in = new BitInputStream(infile);
-             BitOutputStream out = new BitOutputStream(outfile)) {
+        decode(infile, outfile, new Options());
+    }
 
-            int magic = in.readBits(32);
-            if (magic != MAGIC) {
-                throw new IllegalArgumentException("Not a valid .grin file.");
+    /**
+     * Decodes the .grin file denoted by infile and writes the output to the
+     * .grin file denoted by outfile.
+     * @param infile the file to decode
+     * @param outfile the file to ouptut to
+     * @param options the settings to decode with
+     */
+    public static void decode(String infile, String outfile, Options options)
+            throws IOException {
+        if (options.isParallel() && isSeekable(infile) && isSeekable(outfile)
+                && decodeParallel(infile, outfile, options)) {
+            return;
+        }
+        try (BitInputStream in = openInput(infile, options);
+             BitOutputStream out = openOutput(outfile, options)) {
+            decode(in, out, options);
+            report(options, "decoding pass: waiting for input", in.getStallNanos());
+            finish(out, options);
+        }
+    }
+
+    /**
+     * Decodes the blocks of an indexed version 2 file in parallel, straight
+     * into their places in the output file.
+     * @param infile the file to decode
+     * @param outfile the file to write the output to
+     * @param options the settings to decode with
+     * @return false, having done nothing, if the file has no block index
+     * @throws IOException if either file cannot be opened, read or written
+     */
+    private static boolean decodeParallel(String infile, String outfile, Options options)
+            throws IOException {
+        try (FileChannel in = FileChannel.open(Paths.get(infile), StandardOpenOption.READ)) {
+            BlockIndex index = BlockIndex.read(in);
+            if (index == null) {
+                return false;
             }
+            try (FileChannel out = FileChannel.open(Paths.get(outfile),
+                    StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                BlockFormat.decode(in, index, out, options);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Decodes a .grin stream, writing the decoded bytes to out.
+     * @param in the stream to decode
+     * @param out the stream to write the output to
+     */
+    public static void decode(BitInputStream in, BitOutputStream out) {
+        decode(in, out, new Options());
+    }
 
-            HuffmanTree ht = new HuffmanTree(in);
-            ht.decode(in, out);
+    /**
+     * Decodes a .grin stream, writing the decoded bytes to out.
+     * @param in the stream to decode
+     * @param out the stream to write the output to
+     * @param options the settings to decode with
+     */
+    public static void decode(BitInputStream in, BitOutputStream out, Options options) {
+        if (readMagic(in) == BlockFormat.MAGIC) {
+            BlockFormat.decode(in, out, options);
+        } else {
+            new HuffmanTree(in).decode(in, out, options.getDecodeTableBits(),
+                    options.getDecodeSymbols());
         }
     }
 
+    /**
+     * Reads the magic number at the start of a .grin stream.
+     * @param in the stream to read
+     * @return MAGIC for a version 1 stream or BlockFormat.MAGIC for a
+     *         version 2 stream
+     */
+    private static int readMagic(BitInputStream in) {
+        int magic = in.readBits(32);
+        if (magic != MAGIC && magic != BlockFormat.MAGIC) {
+            throw new IllegalArgumentException("Not a valid .grin file.");
+        }
+        return magic;
+    }
+
     /**
      * Creates a mapping from 8-bit sequences to number-of-occurrences of
      * those sequences in the given file. To do this, read the file using a
@@ -37,21 +130,70 @@ public class Grin {
      * @return a freqency map for the given file
      */
     public static Map<Short, Integer> createFrequencyMap(String file) throws IOException {
-        Map<Short, Integer> freqs = new java.util.HashMap<>();
+        return createFrequencyMap(file, BitInputStream.ReadMode.AUTO);
+    }
 
-        try (BitInputStream in = new BitInputStream(file)) {
-            while (true) {
-                int bits = in.readBits(8);
-                if (bits == -1) {
-                    break;
-                }
+    /**
+     * Creates a mapping from 8-bit sequences to number-of-occurrences of
+     * those sequences in the given file, reading it in the given mode.
+     * @param file the file to read
+     * @param mode how to read the file
+     * @return a freqency map for the given file
+     */
+    public static Map<Short, Integer> createFrequencyMap(String file,
+            BitInputStream.ReadMode mode) throws IOException {
+        try (BitInputStream in = new BitInputStream(file, mode)) {
+            return createFrequencyMap(in);
+        }
+    }
 
-                short ch = (short) bits;
-                freqs.put(ch, freqs.getOrDefault(ch, 0) + 1);
-            }
+    /**
+     * Creates a mapping from 8-bit sequences to number-of-occurrences of
+     * those sequences in the rest of the given stream, which must be at a
+     * byte boundary.
+     * @param in the stream to read
+     * @return a freqency map for the given stream
+     */
+    public static Map<Short, Integer> createFrequencyMap(BitInputStream in) {
+        Histogram histogram = new Histogram();
+        histogram.count(in);
+        return histogram.toMap();
+    }
+
+    /**
+     * Counts the occurrences of each byte value in the rest of the given
+     * stream, which must be at a byte boundary.
+     * @param in the stream to read
+     * @return the number of occurrences of each byte value, indexed by value
+     */
+    private static long[] countBytes(BitInputStream in) {
+        Histogram histogram = new Histogram();
+        histogram.count(in);
+        return histogram.toArray();
+    }
+
+    /**
+     * Counts the occurrences of each byte value in the given file, a range
+     * at a time on the thread pool of the given options.
+     * @param file the file to read
+     * @param options the settings that give the pool
+     * @return the number of occurrences of each byte value, indexed by value
+     */
+    private static long[] countBytes(String file, Options options) throws IOException {
+        Histogram histogram = new Histogram();
+        ForkJoinPool pool = options.openPool();
+        try (FileChannel in = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            histogram.count(in, pool);
+        } finally {
+            options.closePool(pool);
         }
+        return histogram.toArray();
+    }
 
-        return freqs;
+    private static long[] countBytes(ByteBuffer src) {
+        Histogram histogram = new Histogram();
+        histogram.count(src);
+        return histogram.toArray();
     }
 
     /**
@@ -61,15 +203,275 @@ public class Grin {
      * @param outfile the file to write the output to.
      */
     public static void encode(String infile, String outfile) throws IOException {
-        Map<Short, Integer> freqs = createFrequencyMap(infile);
+        encode(infile, outfile, new Options());
+    }
+
+    /**
+     * Encodes the given file denoted by infile and writes the output to the
+     * .grin file denoted by outfile.
+     * @param infile the file to encode.
+     * @param outfile the file to write the output to.
+     * @param options the settings to encode with.
+     */
+    public static void encode(String infile, String outfile, Options options)
+            throws IOException {
+        if (options.getFormat() == 2) {
+            try (BitInputStream in = openInput(infile, options);
+                 BitOutputStream out = openOutput(outfile, options)) {
+                BlockFormat.encode(in, out, options);
+                report(options, "encoding pass: waiting for input", in.getStallNanos());
+                finish(out, options);
+            }
+            return;
+        }
 
-        try (BitInputStream in = new BitInputStream(infile);
-             BitOutputStream out = new BitOutputStream(outfile)) {
-            out.writeBits(MAGIC, 32);
+        if (!isSeekable(infile) || options.isSinglePass()) {
+            // Read the input once, holding on to it for the encoding pass.
+            Histogram histogram = new Histogram();
+            try (SpillBuffer held = new SpillBuffer(options.getSpillThreshold())) {
+                try (BitInputStream in = openInput(infile, options)) {
+                    held.fill(in, histogram);
+                    report(options, "frequency pass: waiting for input", in.getStallNanos());
+                }
+                try (BitInputStream in = held.replay();
+                     BitOutputStream out = openOutput(outfile, options)) {
+                    encode(buildTree(histogram.toArray(), options), in, out, options);
+                    finish(out, options);
+                }
+            }
+            return;
+        }
 
-            HuffmanTree ht = new HuffmanTree(freqs);
-            ht.serialize(out);
-            ht.encode(in, out);
+        long[] counts;
+        if (options.isParallel()) {
+            counts = countBytes(infile, options);
+        } else {
+            try (BitInputStream in = openInput(infile, options)) {
+                counts = countBytes(in);
+                report(options, "frequency pass: waiting for input", in.getStallNanos());
+            }
+        }
+
+        try (BitInputStream in = openInput(infile, options);
+             BitOutputStream out = openOutput(outfile, options)) {
+            encode(buildTree(counts, options), in, out, options);
+            report(options, "encoding pass: waiting for input", in.getStallNanos());
+            finish(out, options);
+        }
+    }
+
+    /**
+     * Encodes the rest of the given stream as a version 1 .grin stream.
+     * @param freqs the byte frequencies of the rest of in
+     * @param in the stream to encode
+     * @param out the stream to write the output to
+     */
+    public static void encode(Map<Short, Integer> freqs, BitInputStream in,
+            BitOutputStream out) {
+        encode(new HuffmanTree(freqs), in, out);
+    }
+
+    /**
+     * Encodes the rest of the given stream as a version 1 .grin stream.
+     * @param counts the number of occurrences of each byte value in the
+     *        rest of in, indexed by value
+     * @param in the stream to encode
+     * @param out the stream to write the output to
+     */
+    public static void encode(long[] counts, BitInputStream in, BitOutputStream out) {
+        encode(new HuffmanTree(counts), in, out);
+    }
+
+    private static HuffmanTree buildTree(long[] counts, Options options) {
+        if (options.getMaxCodeLength() == 0) {
+            return new HuffmanTree(counts);
+        }
+        return HuffmanTree.canonical(counts, options.getMaxCodeLength());
+    }
+
+    private static void encode(HuffmanTree ht, BitInputStream in, BitOutputStream out) {
+        out.writeBits(MAGIC, 32);
+        ht.serialize(out);
+        ht.encode(in, out);
+    }
+
+    private static void encode(HuffmanTree ht, BitInputStream in, BitOutputStream out,
+            Options options) {
+        if (!options.isParallel()) {
+            encode(ht, in, out);
+            return;
+        }
+        out.writeBits(MAGIC, 32);
+        ht.serialize(out);
+        ForkJoinPool pool = options.openPool();
+        try {
+            ht.encode(in, out, pool);
+        } finally {
+            options.closePool(pool);
+        }
+    }
+
+    /**
+     * Compresses the given bytes in memory into the contents of a .grin
+     * file. The result is sized exactly from the byte frequencies, so it is
+     * allocated only once.
+     * @param data the bytes to compress
+     * @return the compressed bytes
+     */
+    public static byte[] compress(byte[] data) {
+        ByteBuffer src = ByteBuffer.wrap(data);
+        long[] counts = countBytes(src);
+        HuffmanTree ht = new HuffmanTree(counts);
+        ByteBuffer dst = ByteBuffer.allocate(toArraySize(compressedSize(ht, counts)));
+        compress(ht, src, dst);
+        return dst.array();
+    }
+
+    /**
+     * Decompresses the contents of a .grin file held in memory. The encoded
+     * stream is measured before it is decoded, so the result is allocated
+     * only once.
+     * @param data the contents of a .grin file
+     * @return the decompressed bytes
+     */
+    public static byte[] decompress(byte[] data) {
+        ByteBuffer src = ByteBuffer.wrap(data);
+        ByteBuffer dst = ByteBuffer.allocate(toArraySize(decompressedSize(src)));
+        decompress(src, dst);
+        if (dst.hasRemaining()) {
+            throw new IllegalArgumentException("Not a valid .grin file.");
+        }
+        return dst.array();
+    }
+
+    /**
+     * Computes the exact number of bytes compress(src, dst) writes for the
+     * remaining bytes of src.
+     * @param src the bytes to compress; its position is not changed
+     * @return the size of the compressed output in bytes
+     */
+    public static long compressedSize(ByteBuffer src) {
+        long[] counts = countBytes(src);
+        return compressedSize(new HuffmanTree(counts), counts);
+    }
+
+    /**
+     * Compresses the remaining bytes of src into dst as the contents of a
+     * .grin file, without any intermediate copies; either buffer may be
+     * direct. On return src's position is at its limit and dst's position
+     * is just past the compressed bytes.
+     * @param src the bytes to compress
+     * @param dst the buffer to write the compressed bytes to, with at least
+     *        compressedSize(src) bytes remaining
+     */
+    public static void compress(ByteBuffer src, ByteBuffer dst) {
+        compress(new HuffmanTree(countBytes(src)), src, dst);
+    }
+
+    /**
+     * Computes the exact number of bytes decompress(src, dst) writes for
+     * the .grin contents remaining in src.
+     * @param src the contents of a .grin file; its position is not changed
+     * @return the size of the decompressed output in bytes
+     */
+    public static long decompressedSize(ByteBuffer src) {
+        BlockIndex index = BlockIndex.read(src);
+        if (index != null) {
+            return index.decodedLength();
+        }
+        BitInputStream in = new BitInputStream(src);
+        if (readMagic(in) == BlockFormat.MAGIC) {
+            return BlockFormat.decodedLength(in);
+        }
+        return new HuffmanTree(in).decodedLength(in);
+    }
+
+    /**
+     * Decompresses the .grin contents remaining in src into dst, without
+     * any intermediate copies; either buffer may be direct. On return src's
+     * position is at its limit and dst's position is just past the
+     * decompressed bytes.
+     * @param src the contents of a .grin file
+     * @param dst the buffer to write the decompressed bytes to, with at
+     *        least decompressedSize(src) bytes remaining
+     * @throws IllegalArgumentException if src is not the contents of a
+     *         valid .grin file, including when it decodes to more bytes
+     *         than dst has room for
+     */
+    public static void decompress(ByteBuffer src, ByteBuffer dst) {
+        try (BitOutputStream out = new BitOutputStream(dst)) {
+            decode(new BitInputStream(src), out);
+        } catch (BufferOverflowException e) {
+            // A corrupt block can decode to more than its index entry says.
+            throw new IllegalArgumentException("Not a valid .grin file.");
+        }
+        src.position(src.limit());
+    }
+
+    private static long compressedSize(HuffmanTree ht, long[] counts) {
+        long bits = 32 + ht.serializedBits() + ht.encodedBits(counts);
+        return (bits + 7) / 8;
+    }
+
+    private static void compress(HuffmanTree ht, ByteBuffer src, ByteBuffer dst) {
+        try (BitOutputStream out = new BitOutputStream(dst)) {
+            encode(ht, new BitInputStream(src), out);
+        }
+        src.position(src.limit());
+    }
+
+    private static int toArraySize(long size) {
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too large for a byte array: " + size);
+        }
+        return (int) size;
+    }
+
+    /**
+     * @param file the name of a file, or "-" for standard input or output
+     * @return true iff file names a regular file, or nothing yet, so that it
+     *         can be read more than once and at any position; standard
+     *         input and output, pipes and devices cannot
+     */
+    private static boolean isSeekable(String file) {
+        if (file.equals(STDIO)) {
+            return false;
+        }
+        Path path = Paths.get(file);
+        return Files.isRegularFile(path) || Files.notExists(path);
+    }
+
+    private static BitInputStream openInput(String file, Options options)
+            throws IOException {
+        if (file.equals(STDIO)) {
+            return new BitInputStream(Channels.newChannel(System.in), options.getReadMode());
+        }
+        return new BitInputStream(file, options.getReadMode());
+    }
+
+    private static BitOutputStream openOutput(String file, Options options)
+            throws IOException {
+        if (file.equals(STDIO)) {
+            return new BitOutputStream(Channels.newChannel(System.out),
+                    options.getWriteBehind());
+        }
+        return new BitOutputStream(file, options.getWriteBehind());
+    }
+
+    /**
+     * Closes the given output, so that every byte has been written, then
+     * reports how long it spent waiting for its file.
+     * @param out the output to close
+     * @param options the settings that say whether to report
+     */
+    private static void finish(BitOutputStream out, Options options) {
+        out.close();
+        report(options, "waiting for output", out.getStallNanos());
+    }
+
+    private static void report(Options options, String what, long nanos) {
+        if (options.isVerbose()) {
+            System.err.printf("%s: %d ms%n", what, nanos / 1_000_000);
         }
     }
 
@@ -78,21 +480,82 @@ public class Grin {
      * @param args the command-line arguments.
      */
     public static void main(String[] args) throws IOException {
-        if (args.length != 3) {
-            System.out.println("Usage: java Grin <encode|decode> <infile> <outfile>");
+        Options options = new Options();
+        int i = 0;
+        try {
+            for (; i < args.length && args[i].startsWith("-"); i++) {
+                if (args[i].equals("-m") && i + 1 < args.length) {
+                    i++;
+                    options.setReadMode(
+                            BitInputStream.ReadMode.valueOf(args[i].toUpperCase()));
+                } else if (args[i].equals("-w") && i + 1 < args.length) {
+                    i++;
+                    options.setWriteBehind(Integer.parseInt(args[i]));
+                } else if (args[i].equals("-f") && i + 1 < args.length) {
+                    i++;
+                    options.setFormat(Integer.parseInt(args[i]));
+                } else if (args[i].equals("-l") && i + 1 < args.length) {
+                    i++;
+                    options.setMaxCodeLength(Integer.parseInt(args[i]));
+                } else if (args[i].equals("-t") && i + 1 < args.length) {
+                    i++;
+                    options.setDecodeTableBits(Integer.parseInt(args[i]));
+                } else if (args[i].equals("-n") && i + 1 < args.length) {
+                    i++;
+                    options.setDecodeSymbols(Integer.parseInt(args[i]));
+                } else if (args[i].equals("-p") && i + 1 < args.length) {
+                    i++;
+                    options.setThreads(Integer.parseInt(args[i]));
+                } else if (args[i].equals("-i")) {
+                    options.setInterleaved(true);
+                } else if (args[i].equals("-s")) {
+                    options.setSinglePass(true);
+                } else if (args[i].equals("-v")) {
+                    options.setVerbose(true);
+                } else {
+                    usage();
+                    return;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            usage();
+            return;
+        }
+        if (args.length - i != 3) {
+            usage();
             return;
         }
 
-        String mode = args[0];
-        String infile = args[1];
-        String outfile = args[2];
+        String mode = args[i];
+        String infile = args[i + 1];
+        String outfile = args[i + 2];
 
         if (mode.equals("encode")) {
-            encode(infile, outfile);
+            encode(infile, outfile, options);
         } else if (mode.equals("decode")) {
-            decode(infile, outfile);
+            decode(infile, outfile, options);
         } else {
-            System.out.println("Usage: java Grin <encode|decode> <infile> <outfile>");
+            usage();
         }
     }
+
+    private static void usage() {
+        System.err.println("Usage: java Grin [options] <encode|decode> <infile> <outfile>");
+        System.err.println("Use - as infile or outfile for standard input or output.");
+        System.err.println("Options:");
+        System.err.println("  -f <1|2>  the .grin format version to write (default 1)");
+        System.err.println("  -s  with -f 1, read the input only once, holding it in memory");
+        System.err.println("      or a temporary file (always done for standard input and pipes)");
+        System.err.println("  -i  with -f 2, split blocks into four streams that decode faster");
+        System.err.println("  -p <threads>  work on this many threads (default 1): encode and");
+        System.err.println("      decode version 2 blocks, count and encode version 1 input");
+        System.err.println("  -m <auto|buffered|mapped|prefetch>");
+        System.err.println("      how to read input files (default auto)");
+        System.err.println("  -w <depth>  queue up to depth output buffers for a background");
+        System.err.println("      writer thread (default 0: write on the main thread)");
+        System.err.println("  -l <bits>  limit codes to at most bits long (9-63, default none)");
+        System.err.println("  -t <bits>  bits of input per decoding lookup (default 12)");
+        System.err.println("  -n <count>  most bytes a decoding lookup produces (default 3)");
+        System.err.println("  -v  report I/O statistics on standard error");
+    }
 }
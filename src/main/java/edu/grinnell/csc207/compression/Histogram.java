@@ -0,0 +1,174 @@
+package edu.grinnell.csc207.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A Histogram counts how often each byte value occurs in bulk data.
+ *
+ * Consecutive bytes are counted into four separate tables that are only
+ * added together at the end. With a single table, a run of equal bytes
+ * makes every increment wait for the store of the one before it; spreading
+ * neighbouring bytes over four tables lets those increments overlap.
+ *
+ * A file can also be counted on a ForkJoinPool, with each range of it
+ * counted into a histogram of its own and the results added together.
+ */
+public class Histogram {
+    private static final int SYMBOLS = 256;
+    private static final int SCRATCH_SIZE = 1 << 13;  // bytes copied per bulk read
+    private static final int READ_SIZE = 1 << 16;  // bytes per positional file read
+    private static final long RANGE_SIZE = 1L << 23;  // most bytes counted by one task
+
+    private final long[] counts0 = new long[SYMBOLS];
+    private final long[] counts1 = new long[SYMBOLS];
+    private final long[] counts2 = new long[SYMBOLS];
+    private final long[] counts3 = new long[SYMBOLS];
+
+    /**
+     * Counts the bytes in the given range of an array.
+     * @param data the bytes to count
+     * @param off the index of the first byte to count
+     * @param len the number of bytes to count
+     */
+    public void count(byte[] data, int off, int len) {
+        int i = off;
+        int end = off + len;
+        for (; i + 4 <= end; i += 4) {
+            counts0[data[i] & 0xFF]++;
+            counts1[data[i + 1] & 0xFF]++;
+            counts2[data[i + 2] & 0xFF]++;
+            counts3[data[i + 3] & 0xFF]++;
+        }
+        for (; i < end; i++) {
+            counts0[data[i] & 0xFF]++;
+        }
+    }
+
+    /**
+     * Counts the bytes between the position and limit of the given buffer,
+     * leaving its position untouched.
+     * @param data the bytes to count
+     */
+    public void count(ByteBuffer data) {
+        if (data.hasArray()) {
+            count(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            return;
+        }
+        byte[] scratch = new byte[SCRATCH_SIZE];
+        for (int i = data.position(); i < data.limit(); i += SCRATCH_SIZE) {
+            int n = Math.min(SCRATCH_SIZE, data.limit() - i);
+            data.get(i, scratch, 0, n);
+            count(scratch, 0, n);
+        }
+    }
+
+    /**
+     * Counts every remaining byte of the given stream, which must be at a
+     * byte boundary.
+     * @param in the stream to count
+     */
+    public void count(BitInputStream in) {
+        byte[] scratch = new byte[SCRATCH_SIZE];
+        int n;
+        while ((n = in.readBytes(scratch, 0, SCRATCH_SIZE)) > 0) {
+            count(scratch, 0, n);
+        }
+    }
+
+    /**
+     * Counts every byte of the given file on the given pool. The file is
+     * split into ranges that are counted by separate tasks through
+     * positional reads, so the file's own position is left untouched.
+     * @param file the file to count
+     * @param pool the pool to count on
+     * @throws IOException if the size of the file cannot be read
+     */
+    public void count(FileChannel file, ForkJoinPool pool) throws IOException {
+        add(pool.invoke(new RangeCount(file, 0, file.size())));
+    }
+
+    /** Counts a range of a file, halving it until the pieces are small. */
+    private static final class RangeCount extends RecursiveTask<Histogram> {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel file;
+        private final long start;
+        private final long end;
+
+        RangeCount(FileChannel file, long start, long end) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected Histogram compute() {
+            if (end - start > RANGE_SIZE) {
+                long middle = start + (end - start) / 2;
+                RangeCount left = new RangeCount(file, start, middle);
+                left.fork();
+                Histogram histogram = new RangeCount(file, middle, end).compute();
+                histogram.add(left.join());
+                return histogram;
+            }
+            Histogram histogram = new Histogram();
+            ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+            try {
+                for (long position = start; position < end; ) {
+                    buffer.clear().limit((int) Math.min(READ_SIZE, end - position));
+                    int n = file.read(buffer, position);
+                    if (n < 0) {
+                        break;  // the file shrank while being counted
+                    }
+                    histogram.count(buffer.array(), 0, n);
+                    position += n;
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e.toString());
+            }
+            return histogram;
+        }
+    }
+
+    /**
+     * Adds the counts of another histogram into this one.
+     * @param other the histogram to add
+     */
+    public void add(Histogram other) {
+        long[] counts = other.toArray();
+        for (int i = 0; i < SYMBOLS; i++) {
+            counts0[i] += counts[i];
+        }
+    }
+
+    /** @return the number of occurrences of each byte value, indexed by value */
+    public long[] toArray() {
+        long[] counts = new long[SYMBOLS];
+        for (int i = 0; i < SYMBOLS; i++) {
+            counts[i] = counts0[i] + counts1[i] + counts2[i] + counts3[i];
+        }
+        return counts;
+    }
+
+    /**
+     * @return a map from each byte value that occurs to its number of
+     *         occurrences, in the form HuffmanTree(Map) takes
+     * @throws ArithmeticException if a count does not fit in an Integer
+     */
+    public Map<Short, Integer> toMap() {
+        long[] counts = toArray();
+        Map<Short, Integer> freqs = new HashMap<>();
+        for (int i = 0; i < SYMBOLS; i++) {
+            if (counts[i] > 0) {
+                freqs.put((short) i, Math.toIntExact(counts[i]));
+            }
+        }
+        return freqs;
+    }
+}
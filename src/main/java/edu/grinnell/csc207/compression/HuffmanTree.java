@@ -1,8 +1,14 @@
 package edu.grinnell.csc207.compression;
 
-import java.util.HashMap;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * A HuffmanTree derives a space-efficient coding of a collection of byte
@@ -15,95 +21,579 @@ import java.util.PriorityQueue;
  * byte chunks to the file), but Java does not have a 9-bit data type.
  * Instead, we use the next larger primitive integral type, short, to store
  * our byte values.
+ *
+ * Trees built from frequencies are canonical: their codes are fully
+ * determined by the code length of each value (shorter codes first, ties
+ * broken by value), so they can be written as just those lengths rather
+ * than as their shape. The lengths come straight from the sorted
+ * frequencies by the two-queue method, without building a tree of nodes
+ * along the way. They can also be limited to a maximum code length, which
+ * bounds the size of the decoding tables, at a small cost in compression.
+ *
+ * Decoding looks codes up in a table indexed by the next few bits of input,
+ * which gives the value and length of the code those bits start with.
+ * Longer codes lead on to smaller tables for the bits that follow. On top
+ * of that, decode uses a second table giving every code that fits whole in
+ * those bits, so that text, whose common codes are short, often decodes
+ * several bytes per lookup.
  */
 public class HuffmanTree {
 
     private static final short EOF = 256;
+    private static final int MAX_CODE_LENGTH = 63;  // longest canonical code
+    private static final int MIN_CODE_LIMIT = 9;  // enough for all 257 values
+    private static final int TABLE_BITS = 12;  // default bits per decoding lookup
+    private static final int TABLE_SYMBOLS = 3;  // default bytes per decoding lookup
+    private static final int MAX_TABLE_BITS = 16;
+    private static final int MAX_TABLE_SYMBOLS = 4;
+
+    /** The longest code decodeStreams can decode, in a single lookup. */
+    static final int STREAM_CODE_LIMIT = 12;
+    private static final int CHUNK_SIZE = 1 << 20;  // input bytes per parallel task
 
-    private static class Node implements Comparable<Node> {
-        final Node left;
-        final Node right;
-        final int freq;
-        final Short value;
+    private static final int ROOT = 0;       // the id of the root node
+    private static final short INTERNAL = -1; // the value of an internal node
 
-        Node(short value, int freq) {
-            this.left = null;
-            this.right = null;
-            this.freq = freq;
-            this.value = value;
+    // The nodes of the tree, indexed by id and numbered in preorder. Leaves
+    // have their 9-bit value; internal nodes have INTERNAL and the ids of
+    // their children. A tree of all 257 values has 513 nodes.
+    private short[] left = new short[2 * EOF + 1];
+    private short[] right = new short[2 * EOF + 1];
+    private short[] value = new short[2 * EOF + 1];
+    private int size;          // the number of nodes
+    private long[] codes;      // the code of each 9-bit value, built on first use
+    private byte[] lengths;    // the length of each code, or 0 for no code
+    private int[] table;       // single-code decoding table, built on first use
+    private int tableBits;     // bits per lookup in table
+    private long[] multiTable; // multi-code decoding table, built on first use
+    private int multiBits;     // bits per lookup in multiTable
+    private int multiSymbols;  // most codes per entry of multiTable
+
+    /**
+     * Constructs a new HuffmanTree from a frequency map.
+     * @param freqs a map from 9-bit values to frequencies.
+     */
+    public HuffmanTree(Map<Short, Integer> freqs) {
+        this(toCounts(freqs));
+    }
+
+    /**
+     * Constructs a new HuffmanTree from a primitive histogram, such as the
+     * one Histogram.toArray produces.
+     * @param counts the number of occurrences of each byte value, indexed
+     *        by value
+     */
+    public HuffmanTree(long[] counts) {
+        build(optimalLengths(counts, MAX_CODE_LENGTH));
+    }
+
+    private static long[] toCounts(Map<Short, Integer> freqs) {
+        long[] counts = new long[EOF];
+        for (Map.Entry<Short, Integer> pair : freqs.entrySet()) {
+            short value = pair.getKey();
+            if (value < 0 || value >= EOF) {
+                throw new IllegalArgumentException("Not a byte value: " + value);
+            }
+            counts[value] = pair.getValue();
         }
+        return counts;
+    }
 
-        Node(Node left, Node right) {
-            this.left = left;
-            this.right = right;
-            this.freq = left.freq + right.freq;
-            this.value = null;
+    /**
+     * Fills in codes and lengths from the tree, unless that is done
+     * already. Trees read for decoding never need them.
+     */
+    private void assignCodes() {
+        if (lengths == null) {
+            long[] codes = new long[EOF + 1];
+            byte[] lengths = new byte[EOF + 1];
+            assignCodes(ROOT, 0, 0, codes, lengths);
+            this.codes = codes;
+            this.lengths = lengths;
         }
+    }
 
-        boolean isLeaf() {
-            return value != null;
+    private void assignCodes(int node, long code, int length, long[] codes,
+            byte[] lengths) {
+        if (isLeaf(node)) {
+            codes[value[node]] = code;
+            lengths[value[node]] = (byte) length;
+        } else if (length == Long.SIZE) {
+            throw new IllegalStateException("Code longer than 64 bits.");
+        } else {
+            assignCodes(left[node], code << 1, length + 1, codes, lengths);
+            assignCodes(right[node], code << 1 | 1, length + 1, codes, lengths);
         }
+    }
 
-        @Override
-        public int compareTo(Node other) {
-            return Integer.compare(this.freq, other.freq);
+    /** @return the number of values with a code, including EOF */
+    private int leaves() {
+        if (isLeaf(ROOT)) {
+            return 1;  // only EOF, whose code is empty
+        }
+        assignCodes();
+        int n = 0;
+        for (byte len : lengths) {
+            if (len > 0) {
+                n++;
+            }
         }
+        return n;
     }
 
-    private Node root;
-    private Map<Short, String> charCodes;
+    /**
+     * Constructs a new HuffmanTree from the given file.
+     * @param in the input file (as a BitInputStream)
+     */
+    public HuffmanTree(BitInputStream in) {
+        readNode(in);
+    }
+
+    private HuffmanTree() {
+    }
 
     /**
-     * Constructs a new HuffmanTree from a frequency map.
-     * @param freqs a map from 9-bit values to frequencies.
+     * Adds a node to the tree.
+     * @param v the value of the node, or INTERNAL
+     * @return the id of the node
      */
-    public HuffmanTree(Map<Short, Integer> freqs) {
-        PriorityQueue<Node> pq = new PriorityQueue<>();
-        for (Map.Entry<Short, Integer> pair : freqs.entrySet()) {
-            pq.add(new Node(pair.getKey(), pair.getValue()));
+    private int newNode(int v) {
+        if (size == value.length) {
+            // Only trees read from a file can have more nodes than values.
+            if (size == Short.MAX_VALUE) {
+                throw new IllegalArgumentException("Not a valid .grin file.");
+            }
+            int capacity = Math.min(2 * size, Short.MAX_VALUE);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+            value = Arrays.copyOf(value, capacity);
         }
-        pq.add(new Node(EOF, 1));
+        value[size] = (short) v;
+        return size++;
+    }
 
-        while (pq.size() >= 2) {
-            Node left = pq.remove();
-            Node right = pq.remove();
-            pq.add(new Node(left, right));
+    private boolean isLeaf(int node) {
+        return value[node] != INTERNAL;
+    }
+
+    /**
+     * Constructs a canonical HuffmanTree from a primitive histogram. This
+     * is the same tree as HuffmanTree(counts).
+     * @param counts the number of occurrences of each byte value, indexed
+     *        by value
+     * @return the canonical tree
+     */
+    public static HuffmanTree canonical(long[] counts) {
+        return canonical(counts, 0);
+    }
+
+    /**
+     * Constructs a canonical HuffmanTree from a primitive histogram whose
+     * codes are at most maxLength bits long. Its code lengths are the best
+     * possible under that limit, and match HuffmanTree(counts) when that
+     * tree already meets it.
+     * @param counts the number of occurrences of each byte value, indexed
+     *        by value
+     * @param maxLength the longest code allowed (9--63), or 0 for the 63
+     *        bits any canonical code is limited to
+     * @return the canonical tree
+     */
+    public static HuffmanTree canonical(long[] counts, int maxLength) {
+        if (maxLength == 0) {
+            maxLength = MAX_CODE_LENGTH;
         }
+        if (maxLength < MIN_CODE_LIMIT || maxLength > MAX_CODE_LENGTH) {
+            throw new IllegalArgumentException("Illegal code length limit: " + maxLength);
+        }
+        HuffmanTree ht = new HuffmanTree();
+        ht.build(optimalLengths(counts, maxLength));
+        return ht;
+    }
 
-        this.root = pq.remove();
-        this.charCodes = new HashMap<>();
-        getCharCodes(this.root, "");
+    private void build(int[] lengths) {
+        if (lengths[EOF] == 0) {
+            newNode(EOF);  // only EOF, whose code is empty
+        } else {
+            buildCanonical(lengths);
+        }
     }
 
-    private void getCharCodes(Node node, String charCode) {
-        if (node.isLeaf()) {
-            charCodes.put(node.value, charCode);
-            return;
+    /**
+     * Computes the optimal code lengths of at most maxLength bits for the
+     * given byte counts and a single EOF.
+     * @param counts the number of occurrences of each byte value, indexed
+     *        by value
+     * @param maxLength the longest code allowed (at least 9)
+     * @return the length of the code of each 9-bit value, indexed by value;
+     *         all 0 if EOF is the only value
+     */
+    static int[] optimalLengths(long[] counts, int maxLength) {
+        // The values with a code by increasing frequency, EOF occurring
+        // once. Each is sorted as one long with its frequency above its
+        // value, unless some frequency is too large for that.
+        long[] keys = new long[EOF + 1];
+        long largest = 1;
+        int n = 0;
+        for (int v = 0; v < counts.length; v++) {
+            if (counts[v] > 0) {
+                keys[n++] = counts[v] << 9 | v;
+                largest = Math.max(largest, counts[v]);
+            }
+        }
+        keys[n++] = 1L << 9 | EOF;
+        short[] values = new short[EOF + 1];
+        long[] weights = new long[EOF + 1];
+        if (largest < 1L << (Long.SIZE - 10)) {
+            Arrays.sort(keys, 0, n);
+            for (int i = 0; i < n; i++) {
+                values[i] = (short) (keys[i] & 0x1FF);
+                weights[i] = keys[i] >>> 9;
+            }
+        } else {
+            sortByCount(counts, values, weights);
+        }
+
+        int[] lengths = new int[EOF + 1];
+        if (n == 1) {
+            return lengths;
         }
-        getCharCodes(node.left, charCode + "0");
-        getCharCodes(node.right, charCode + "1");
+        huffmanLengths(values, weights, n, lengths);
+        for (int i = 0; i < n; i++) {
+            if (lengths[values[i]] > maxLength) {
+                Arrays.fill(lengths, 0);
+                limitedLengths(values, weights, n, maxLength, lengths);
+                break;
+            }
+        }
+        return lengths;
     }
 
     /**
-     * Constructs a new HuffmanTree from the given file.
+     * Sorts the values with a code by increasing frequency, EOF occurring
+     * once, with an insertion sort that handles any frequency.
+     * @param counts the number of occurrences of each byte value, indexed
+     *        by value
+     * @param values where to store the sorted values
+     * @param weights where to store the frequency of each sorted value
+     */
+    private static void sortByCount(long[] counts, short[] values, long[] weights) {
+        int n = 0;
+        for (int v = 0; v <= counts.length; v++) {
+            long weight = v == counts.length ? 1 : counts[v];
+            if (weight <= 0) {
+                continue;
+            }
+            int i = n++;
+            for (; i > 0 && weights[i - 1] > weight; i--) {
+                values[i] = values[i - 1];
+                weights[i] = weights[i - 1];
+            }
+            values[i] = (short) (v == counts.length ? EOF : v);
+            weights[i] = weight;
+        }
+    }
+
+    /**
+     * Computes Huffman code lengths with the two-queue method. The leaves
+     * are taken in order of weight from one queue, and the internal nodes,
+     * which are made in order of weight, go into a second; each step joins
+     * the two lightest nodes at the front of either queue. Nodes are
+     * numbered, leaves first, and only their parents are recorded, so no
+     * node objects are needed.
+     * @param values the values, by increasing weight
+     * @param weights the weight of each value
+     * @param n the number of values (at least 2)
+     * @param lengths where to store the length of the code of each value,
+     *        indexed by value
+     */
+    private static void huffmanLengths(short[] values, long[] weights, int n,
+            int[] lengths) {
+        long[] joined = new long[n - 1];  // the weights of the internal nodes
+        int[] parent = new int[2 * n - 1];
+        int leaf = 0;
+        int front = 0;
+        for (int k = 0; k < n - 1; k++) {
+            long weight = 0;
+            for (int pick = 0; pick < 2; pick++) {
+                if (leaf < n && (front == k || weights[leaf] <= joined[front])) {
+                    weight += weights[leaf];
+                    parent[leaf++] = n + k;
+                } else {
+                    weight += joined[front];
+                    parent[n + front++] = n + k;
+                }
+            }
+            joined[k] = weight;
+        }
+
+        // Parents are numbered after their children, so depths can be
+        // filled in from the root down, each over its node's parent entry.
+        int[] depth = parent;
+        depth[2 * n - 2] = 0;
+        for (int node = 2 * n - 3; node >= 0; node--) {
+            depth[node] = depth[parent[node]] + 1;
+        }
+        for (int i = 0; i < n; i++) {
+            lengths[values[i]] = depth[i];
+        }
+    }
+
+    /**
+     * Computes the optimal code lengths of at most maxLength bits with the
+     * package-merge algorithm. Think of each value as a coin of its
+     * frequency for each of the maxLength levels of the tree. Going up from
+     * the deepest level, the coins of a level are paired off into packages
+     * in order of weight and those packages join the next level's coins.
+     * The cheapest 2n - 2 items of the top level then make up the tree: a
+     * value's code length is the number of levels at which one of its coins
+     * is among them, either directly or inside a chosen package.
+     * @param values the values, by increasing weight
+     * @param weights the weight of each value
+     * @param n the number of values (at least 2)
+     * @param maxLength the longest code allowed
+     * @param lengths where to store the length of the code of each value,
+     *        indexed by value, all 0 to begin with
+     */
+    private static void limitedLengths(short[] values, long[] weights, int n,
+            int maxLength, int[] lengths) {
+        // Merge the coins and packages of each level, deepest first,
+        // noting which items of each level are packages.
+        boolean[][] isPackage = new boolean[maxLength][];
+        long[] below = new long[0];
+        for (int level = maxLength - 1; level >= 0; level--) {
+            int packages = below.length / 2;
+            long[] items = new long[n + packages];
+            isPackage[level] = new boolean[n + packages];
+            int coin = 0;
+            int pkg = 0;
+            for (int k = 0; k < items.length; k++) {
+                if (pkg == packages
+                        || coin < n && weights[coin] <= below[2 * pkg] + below[2 * pkg + 1]) {
+                    items[k] = weights[coin++];
+                } else {
+                    items[k] = below[2 * pkg] + below[2 * pkg + 1];
+                    isPackage[level][k] = true;
+                    pkg++;
+                }
+            }
+            below = items;
+        }
+
+        // The chosen items of a level are a prefix of it, and its chosen
+        // coins are those of the least frequent values.
+        int chosen = 2 * n - 2;
+        for (int level = 0; level < maxLength; level++) {
+            int coins = 0;
+            for (int k = 0; k < chosen; k++) {
+                if (!isPackage[level][k]) {
+                    coins++;
+                }
+            }
+            for (int i = 0; i < coins; i++) {
+                lengths[values[i]]++;
+            }
+            chosen = 2 * (chosen - coins);
+        }
+    }
+
+    /** @return the length of the code of each 9-bit value, indexed by value */
+    private int[] codeLengths() {
+        assignCodes();
+        int[] result = new int[EOF + 1];
+        for (int v = 0; v <= EOF; v++) {
+            result[v] = lengths[v];
+        }
+        return result;
+    }
+
+    /**
+     * Builds the tree of the canonical code with the given code lengths.
+     * @param lengths the length of the code of each 9-bit value, or 0 for
+     *        values without a code
+     */
+    private void buildCanonical(int[] lengths) {
+        // List the values by code length, then by value, and hand out
+        // consecutive codes in that order.
+        int n = 0;
+        short[] values = new short[lengths.length];
+        int[] sizes = new int[lengths.length];
+        for (int len = 1; len <= MAX_CODE_LENGTH; len++) {
+            for (int v = 0; v < lengths.length; v++) {
+                if (lengths[v] == len) {
+                    values[n] = (short) v;
+                    sizes[n++] = len;
+                }
+            }
+        }
+        if (n < 2) {
+            throw new IllegalArgumentException("Not a valid .grin file.");
+        }
+
+        long[] codes = new long[n];
+        long code = 0;
+        for (int i = 0; i < n; i++) {
+            code <<= sizes[i] - (i == 0 ? 0 : sizes[i - 1]);
+            codes[i] = code++;
+        }
+        // Lengths that do not describe a full tree fail somewhere below.
+        buildCanonical(values, codes, sizes, 0, n, 0);
+    }
+
+    private int buildCanonical(short[] values, long[] codes, int[] sizes,
+            int lo, int hi, int depth) {
+        if (hi - lo == 1 && sizes[lo] == depth) {
+            return newNode(values[lo]);
+        }
+        if (sizes[lo] <= depth) {
+            throw new IllegalArgumentException("Not a valid .grin file.");
+        }
+        // The codes are sorted, so those with a 0 at this depth come first.
+        int mid = lo;
+        while (mid < hi && ((codes[mid] >>> (sizes[mid] - depth - 1)) & 1) == 0) {
+            mid++;
+        }
+        if (mid == lo || mid == hi) {
+            throw new IllegalArgumentException("Not a valid .grin file.");
+        }
+        int node = newNode(INTERNAL);
+        int zero = buildCanonical(values, codes, sizes, lo, mid, depth + 1);
+        int one = buildCanonical(values, codes, sizes, mid, hi, depth + 1);
+        left[node] = (short) zero;
+        right[node] = (short) one;
+        return node;
+    }
+
+    /**
+     * Writes the code lengths of this tree, from which readCodeLengths
+     * rebuilds it. The tree must be canonical. The lengths are written as
+     * <pre>
+     *   3 bits  w - 1, where w is the number of bits per length
+     *   9 bits  n - 1, where n is the number of values with a code
+     *   1 bit   0: n pairs of a 9-bit value and its w-bit length
+     *           1: a bit for each of the 257 values telling whether it
+     *              has a code, then the w-bit lengths of those that do
+     * </pre>
+     * whichever layout is shorter.
+     * @param out the output file as a BitOutputStream
+     */
+    public void writeCodeLengths(BitOutputStream out) {
+        int[] lengths = codeLengths();
+        int n = leaves();
+        int width = lengthWidth(lengths);
+        out.writeBits(width - 1, 3);
+        out.writeBits(n - 1, 9);
+        if (isBitmapShorter(n)) {
+            out.writeBit(1);
+            for (int v = 0; v <= EOF; v++) {
+                out.writeBit(lengths[v] > 0 ? 1 : 0);
+            }
+            for (int v = 0; v <= EOF; v++) {
+                if (lengths[v] > 0) {
+                    out.writeBits(lengths[v], width);
+                }
+            }
+        } else {
+            out.writeBit(0);
+            for (int v = 0; v <= EOF; v++) {
+                if (lengths[v] > 0) {
+                    out.writeBits(v, 9);
+                    out.writeBits(lengths[v], width);
+                }
+            }
+        }
+    }
+
+    /** @return the number of bits writeCodeLengths writes for this tree */
+    public int codeLengthsBits() {
+        int n = leaves();
+        int width = lengthWidth(codeLengths());
+        return 13 + (isBitmapShorter(n) ? EOF + 1 + n * width : n * (9 + width));
+    }
+
+    private static int lengthWidth(int[] lengths) {
+        int max = 0;
+        for (int len : lengths) {
+            max = Math.max(max, len);
+        }
+        return Integer.SIZE - Integer.numberOfLeadingZeros(max);
+    }
+
+    private static boolean isBitmapShorter(int n) {
+        return EOF + 1 < 9 * n;
+    }
+
+    /**
+     * Reads a canonical HuffmanTree written by writeCodeLengths.
      * @param in the input file (as a BitInputStream)
+     * @return the canonical tree
      */
-    public HuffmanTree(BitInputStream in) {
-        this.root = readNode(in);
-        this.charCodes = new HashMap<>();
-        getCharCodes(this.root, "");
+    public static HuffmanTree readCodeLengths(BitInputStream in) {
+        int width = in.readBits(3) + 1;
+        int n = in.readBits(9) + 1;
+        int layout = in.readBit();
+        if (width == 0 || n == 0 || n > EOF + 1 || layout == -1) {
+            throw new IllegalArgumentException("Not a valid .grin file.");
+        }
+
+        int[] lengths = new int[EOF + 1];
+        if (layout == 1) {
+            int[] values = new int[n];
+            int found = 0;
+            for (int v = 0; v <= EOF; v++) {
+                int bit = in.readBit();
+                if (bit == -1 || bit == 1 && found == n) {
+                    throw new IllegalArgumentException("Not a valid .grin file.");
+                }
+                if (bit == 1) {
+                    values[found++] = v;
+                }
+            }
+            if (found != n) {
+                throw new IllegalArgumentException("Not a valid .grin file.");
+            }
+            for (int v : values) {
+                lengths[v] = readCodeLength(in, width);
+            }
+        } else {
+            for (int i = 0; i < n; i++) {
+                int v = in.readBits(9);
+                if (v == -1 || v > EOF) {
+                    throw new IllegalArgumentException("Not a valid .grin file.");
+                }
+                lengths[v] = readCodeLength(in, width);
+            }
+        }
+        HuffmanTree ht = new HuffmanTree();
+        ht.buildCanonical(lengths);
+        return ht;
+    }
+
+    private static int readCodeLength(BitInputStream in, int width) {
+        int len = in.readBits(width);
+        if (len < 1 || len > MAX_CODE_LENGTH) {
+            throw new IllegalArgumentException("Not a valid .grin file.");
+        }
+        return len;
     }
 
-    private Node readNode(BitInputStream in) {
+    private int readNode(BitInputStream in) {
         int bit = in.readBit();
         if (bit == -1) {
             throw new IllegalArgumentException("Not a valid .grin file.");
         }
         if (bit == 0) {
             int charCode = in.readBits(9);
-            return new Node((short) charCode, 0);
+            if (charCode == -1) {
+                throw new IllegalArgumentException("Not a valid .grin file.");
+            }
+            return newNode(charCode);
         } else {
-            return new Node(readNode(in), readNode(in));
+            int node = newNode(INTERNAL);
+            int zero = readNode(in);
+            int one = readNode(in);
+            left[node] = (short) zero;
+            right[node] = (short) one;
+            return node;
         }
     }
 
@@ -113,46 +603,215 @@ public class HuffmanTree {
      * @param out the output file as a BitOutputStream
      */
     public void serialize(BitOutputStream out) {
-        serializeNode(root, out);
+        serializeNode(ROOT, out);
     }
 
-    private void serializeNode(Node node, BitOutputStream out) {
-        if (node.isLeaf()) {
+    private void serializeNode(int node, BitOutputStream out) {
+        if (isLeaf(node)) {
             out.writeBit(0);
-            out.writeBits(node.value, 9);
+            out.writeBits(value[node], 9);
         } else {
             out.writeBit(1);
-            serializeNode(node.left, out);
-            serializeNode(node.right, out);
+            serializeNode(left[node], out);
+            serializeNode(right[node], out);
         }
     }
-   
+
+    /**
+     * @return the number of bits serialize writes for this tree: a tag bit
+     *         for every node plus a 9-bit value for every leaf
+     */
+    public int serializedBits() {
+        int leaves = leaves();
+        return 10 * leaves + (leaves - 1);
+    }
+
+    /**
+     * Computes the exact number of bits encode writes for an input with
+     * the given byte frequencies, including the EOF code.
+     * @param freqs a map from 9-bit values to frequencies
+     * @return the number of bits of encoded output
+     */
+    public long encodedBits(Map<Short, Integer> freqs) {
+        return encodedBits(toCounts(freqs));
+    }
+
+    /**
+     * Computes the exact number of bits encode writes for an input with
+     * the given byte counts, including the EOF code.
+     * @param counts the number of occurrences of each byte value, indexed
+     *        by value
+     * @return the number of bits of encoded output
+     */
+    public long encodedBits(long[] counts) {
+        assignCodes();
+        return lengths[EOF] + codeBits(counts);
+    }
+
+    /**
+     * Computes the number of bits the codes of the given byte counts take
+     * up, without an EOF code.
+     * @param counts the number of occurrences of each byte value, indexed
+     *        by value
+     * @return the number of bits of codes
+     */
+    public long codeBits(long[] counts) {
+        assignCodes();
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i] * lengths[i];
+        }
+        return total;
+    }
+
     /**
      * Encodes the file given as a stream of bits into a compressed format
-     * using this Huffman tree. The encoded values are written, bit-by-bit
-     * to the given BitOuputStream.
+     * using this Huffman tree. Each value's code is written with a single
+     * writeBits call (two for codes longer than 32 bits) to the given
+     * BitOuputStream.
      * @param in the file to compress.
      * @param out the file to write the compressed output to.
      */
     public void encode(BitInputStream in, BitOutputStream out) {
+        assignCodes();
+        long[] codes = this.codes;
+        byte[] lengths = this.lengths;
         while (true) {
             int bits = in.readBits(8);
             if (bits == -1) {
                 break;
             }
+            writeCode(out, codes[bits], lengths[bits]);
+        }
+        writeCode(out, codes[EOF], lengths[EOF]);
+    }
+
+    private static void writeCode(BitOutputStream out, long code, int length) {
+        if (length > Integer.SIZE) {
+            out.writeBits((int) (code >>> Integer.SIZE), length - Integer.SIZE);
+            length = Integer.SIZE;
+        }
+        out.writeBits((int) code, length);
+    }
 
-            short ch = (short) bits;
-            String charCode = charCodes.get(ch);
-            for (char bit : charCode.toCharArray()) {
-                out.writeBit(bit - '0'); // '0'->0, '1'->1
+    /**
+     * Encodes the file given as a stream of bits exactly as encode(in, out)
+     * does, but on the given pool. The input is read a chunk at a time and
+     * each chunk is counted, sized and encoded into a buffer of its own by
+     * a separate task, so this thread only reads and writes. The buffers
+     * are then appended to out in order at whatever bit offset out has
+     * reached, and the EOF code is written once after the last of them.
+     * A chunk's input array is reused once its codes have been written.
+     * @param in the file to compress.
+     * @param out the file to write the compressed output to.
+     * @param pool the pool to encode on.
+     */
+    public void encode(BitInputStream in, BitOutputStream out, ForkJoinPool pool) {
+        assignCodes();  // before the tasks start, so that they only read the tables
+        int window = 2 * pool.getParallelism();
+        ArrayDeque<PendingChunk> pending = new ArrayDeque<>();
+        ArrayDeque<byte[]> free = new ArrayDeque<>();
+        while (true) {
+            byte[] chunk = free.isEmpty() ? new byte[CHUNK_SIZE] : free.pop();
+            int length = in.readBytes(chunk, 0, CHUNK_SIZE);
+            if (length == 0) {
+                break;
             }
+            pending.add(new PendingChunk(chunk,
+                    pool.submit(() -> encodeChunk(chunk, length))));
+            if (pending.size() >= window) {
+                free.push(pending.remove().writeTo(out));
+            }
+        }
+        while (!pending.isEmpty()) {
+            pending.remove().writeTo(out);
         }
+        writeCode(out, codes[EOF], lengths[EOF]);
+    }
+
+    /** A chunk of input whose codes are being written on another thread. */
+    private static final class PendingChunk {
+        final byte[] chunk;
+        final ForkJoinTask<EncodedChunk> encoded;
+
+        PendingChunk(byte[] chunk, ForkJoinTask<EncodedChunk> encoded) {
+            this.chunk = chunk;
+            this.encoded = encoded;
+        }
+
+        /**
+         * Waits for the chunk's codes and writes them out.
+         * @param out the stream to write the codes to
+         * @return the chunk's input array, free to be reused
+         */
+        byte[] writeTo(BitOutputStream out) {
+            EncodedChunk done = encoded.join();
+            out.writeBits(done.codes, done.bits);
+            return chunk;
+        }
+    }
+
+    /** The codes of a chunk, and how many bits of the buffer they fill. */
+    private static final class EncodedChunk {
+        final ByteBuffer codes;
+        final long bits;
 
-        String eofCode = charCodes.get(EOF);
-        for (char bit : eofCode.toCharArray()) {
-            out.writeBit(bit - '0'); // '0'->0, '1'->1
+        EncodedChunk(ByteBuffer codes, long bits) {
+            this.codes = codes;
+            this.bits = bits;
         }
     }
+
+    /**
+     * Counts the bytes of a chunk to size a buffer for its codes exactly,
+     * then writes the codes into it.
+     * @param chunk the bytes to encode
+     * @param length the number of bytes to encode
+     * @return the codes of the chunk, without an EOF code
+     */
+    private EncodedChunk encodeChunk(byte[] chunk, int length) {
+        Histogram histogram = new Histogram();
+        histogram.count(chunk, 0, length);
+        long bits = codeBits(histogram.toArray());
+        ByteBuffer buffer = ByteBuffer.allocate((int) ((bits + 7) / 8));
+        try (BitOutputStream out = new BitOutputStream(buffer)) {
+            encode(chunk, 0, length, out);
+        }
+        return new EncodedChunk(buffer.flip(), bits);
+    }
+
+    /**
+     * Writes the codes of a range of bytes, without an EOF code.
+     * @param data the bytes to encode
+     * @param off the index of the first byte to encode
+     * @param len the number of bytes to encode
+     * @param out the stream to write the codes to
+     */
+    public void encode(byte[] data, int off, int len, BitOutputStream out) {
+        assignCodes();
+        long[] codes = this.codes;
+        byte[] lengths = this.lengths;
+        for (int i = off; i < off + len; i++) {
+            int b = data[i] & 0xFF;
+            writeCode(out, codes[b], lengths[b]);
+        }
+    }
+
+    /**
+     * Counts the bytes that decode would produce from the given stream,
+     * without producing them. This consumes the stream just as decode does.
+     * @param in the file to measure.
+     * @return the number of bytes encoded before the EOF character.
+     */
+    public long decodedLength(BitInputStream in) {
+        int[] table = decodeTable(TABLE_BITS);
+        long length = 0;
+        while (nextValue(table, TABLE_BITS, in) != EOF) {
+            length++;
+        }
+        return length;
+    }
+
     /**
      * Decodes a stream of huffman codes from a file given as a stream of
      * bits into their uncompressed form, saving the results to the given
@@ -162,23 +821,267 @@ public class HuffmanTree {
      * @param out the file to write the decompressed output to.
      */
     public void decode(BitInputStream in, BitOutputStream out) {
-        Node cur = root;
+        decode(in, out, TABLE_BITS, TABLE_SYMBOLS);
+    }
 
+    /**
+     * Decodes a stream of huffman codes like decode(in, out), with the
+     * given size of decoding tables. Larger tables resolve more codes per
+     * lookup but take longer to build, which matters for small inputs.
+     * @param in the file to decompress.
+     * @param out the file to write the decompressed output to.
+     * @param tableBits the number of bits of input each lookup looks at
+     *        (1--16)
+     * @param maxSymbols the most bytes a single lookup produces (1--4)
+     * @return the number of bytes written to out
+     */
+    public long decode(BitInputStream in, BitOutputStream out, int tableBits,
+            int maxSymbols) {
+        if (tableBits < 1 || tableBits > MAX_TABLE_BITS) {
+            throw new IllegalArgumentException("Illegal table size: " + tableBits);
+        }
+        if (maxSymbols < 1 || maxSymbols > MAX_TABLE_SYMBOLS) {
+            throw new IllegalArgumentException("Illegal symbol count: " + maxSymbols);
+        }
+        int[] table = decodeTable(tableBits);
+        long[] multi = multiTable(tableBits, maxSymbols);
+        long length = 0;
         while (true) {
-            int bit = in.readBit();
-            if (bit == -1) {
-                return;
+            long entry = multi[in.peekBits(tableBits)];
+            int count = (int) (entry >>> 32) & 0xFF;
+            if (count > 0 && in.skipBits((int) (entry >>> 40))) {
+                out.writeBits((int) entry, 8 * count);
+                length += count;
+                continue;
+            }
+            // A code that is long, EOF, or runs past the end of the input.
+            int value = nextValue(table, tableBits, in);
+            if (value == EOF) {
+                return length;
+            }
+            out.writeBits(value, 8);
+            length++;
+        }
+    }
+
+    /**
+     * Decodes four byte-aligned streams of codes written by
+     * encode(data, off, len, out) into consecutive ranges of dst. The
+     * streams are independent, so decoding them in step lets the lookups
+     * of one overlap with those of the others. Every code must be at most
+     * STREAM_CODE_LIMIT bits long.
+     * @param src the streams, one after the other
+     * @param bounds the index in src of the start of each stream, then
+     *        the end of the last one
+     * @param dst where to write the decoded bytes
+     * @param sizes the number of bytes in each stream
+     */
+    public void decodeStreams(byte[] src, int[] bounds, byte[] dst, int[] sizes) {
+        if (height(ROOT) > STREAM_CODE_LIMIT) {
+            throw new IllegalArgumentException("Not a valid .grin file.");
+        }
+        int[] table = decodeTable(STREAM_CODE_LIMIT);
+        StreamCursor c0 = new StreamCursor(src, bounds[0], bounds[1]);
+        StreamCursor c1 = new StreamCursor(src, bounds[1], bounds[2]);
+        StreamCursor c2 = new StreamCursor(src, bounds[2], bounds[3]);
+        StreamCursor c3 = new StreamCursor(src, bounds[3], bounds[4]);
+        int d1 = sizes[0];
+        int d2 = d1 + sizes[1];
+        int d3 = d2 + sizes[2];
+        int common = Math.min(Math.min(sizes[0], sizes[1]), Math.min(sizes[2], sizes[3]));
+        for (int i = 0; i < common; i++) {
+            dst[i] = c0.next(table);
+            dst[d1 + i] = c1.next(table);
+            dst[d2 + i] = c2.next(table);
+            dst[d3 + i] = c3.next(table);
+        }
+        for (int i = common; i < sizes[0]; i++) {
+            dst[i] = c0.next(table);
+        }
+        for (int i = common; i < sizes[1]; i++) {
+            dst[d1 + i] = c1.next(table);
+        }
+        for (int i = common; i < sizes[2]; i++) {
+            dst[d2 + i] = c2.next(table);
+        }
+        for (int i = common; i < sizes[3]; i++) {
+            dst[d3 + i] = c3.next(table);
+        }
+        if (!c0.isDone() || !c1.isDone() || !c2.isDone() || !c3.isDone()) {
+            throw new IllegalArgumentException("Not a valid .grin file.");
+        }
+    }
+
+    /**
+     * A read position within one of the streams decodeStreams decodes. To
+     * keep the decoding loop short, a cursor does not check its codes as it
+     * goes; a corrupt stream shows up as a cursor that reads past its end
+     * or stops short of it.
+     */
+    private static final class StreamCursor {
+        private static final VarHandle LONG =
+                MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+        private final byte[] src;
+        private int pos;          // the next byte of src to load
+        private final int end;    // the end of the stream in src
+        private long bits;        // the low count bits are unread
+        private int count;
+
+        StreamCursor(byte[] src, int start, int end) {
+            this.src = src;
+            this.pos = start;
+            this.end = end;
+        }
+
+        /**
+         * @param table a decoding table STREAM_CODE_LIMIT bits wide with
+         *        no links to further tables
+         * @return the value of the next code
+         */
+        byte next(int[] table) {
+            if (count < STREAM_CODE_LIMIT) {
+                if (pos + Long.BYTES <= end && count >= 0) {
+                    // Top up to 57--63 bits from one 8-byte load.
+                    int k = (Long.SIZE - 1 - count) >>> 3;
+                    bits = bits << (8 * k)
+                            | (long) LONG.get(src, pos) >>> (Long.SIZE - 8 * k);
+                    pos += k;
+                    count += 8 * k;
+                } else {
+                    while (count <= Long.SIZE - 8 && pos < end) {
+                        bits = bits << 8 | src[pos++] & 0xFF;
+                        count += 8;
+                    }
+                }
             }
+            int window = count >= STREAM_CODE_LIMIT
+                    ? (int) (bits >>> (count - STREAM_CODE_LIMIT))
+                    : (int) (bits << (STREAM_CODE_LIMIT - count));
+            int entry = table[window & ((1 << STREAM_CODE_LIMIT) - 1)];
+            count -= entry & 0xFF;
+            return (byte) (entry >>> 8);
+        }
 
-            cur = (bit == 0) ? cur.left : cur.right;
+        /**
+         * @return true iff the cursor has read its whole stream but for
+         *         fewer than 8 bits of padding
+         */
+        boolean isDone() {
+            return count >= 0 && count + 8L * (end - pos) < 8;
+        }
+    }
+
+    /**
+     * Reads the next code from the stream.
+     * @param table the decoding table of this tree
+     * @param width the number of bits the first level of table looks at
+     * @param in the stream to read from
+     * @return the value of the code, or EOF if the stream ends first
+     */
+    private static int nextValue(int[] table, int width, BitInputStream in) {
+        int entry = table[in.peekBits(width)];
+        while (entry < 0) {
+            if (!in.skipBits(width)) {
+                return EOF;
+            }
+            width = entry & 0x1F;
+            entry = table[((entry & Integer.MAX_VALUE) >>> 5) + in.peekBits(width)];
+        }
+        if (!in.skipBits(entry & 0xFF)) {
+            return EOF;
+        }
+        return entry >>> 8;
+    }
 
-            if (cur.isLeaf()) {
-                if (cur.value == EOF) {
-                    return;
+    /**
+     * @param width the number of bits the first level of the table looks at
+     * @return the single-code decoding table of this tree. An entry for a
+     *         leaf holds its value shifted left by 8 over the length of its
+     *         code within the table; an entry for a longer code is negative
+     *         and holds the offset of the next table shifted left by 5 over
+     *         the number of bits that table looks at.
+     */
+    private int[] decodeTable(int width) {
+        if (table == null || tableBits != width) {
+            if (isLeaf(ROOT)) {
+                // Only EOF, whose code is empty.
+                table = new int[1 << width];
+                Arrays.fill(table, EOF << 8);
+            } else {
+                table = fillTable(new int[1 << width], ROOT, 0, 0, 0, width);
+            }
+            tableBits = width;
+        }
+        return table;
+    }
+
+    /**
+     * Fills in the entries of a table for the codes below the given node.
+     * @param table the tables built so far
+     * @param node the node to fill in entries for
+     * @param depth the depth of node below the node the table starts at
+     * @param prefix the bits leading from that node to node
+     * @param offset the offset of the table within table
+     * @param width the number of bits the table looks at
+     * @return table, or a longer copy of it if further tables were needed
+     */
+    private int[] fillTable(int[] table, int node, int depth, int prefix, int offset,
+            int width) {
+        if (isLeaf(node)) {
+            int first = offset + (prefix << (width - depth));
+            Arrays.fill(table, first, first + (1 << (width - depth)),
+                    value[node] << 8 | depth);
+        } else if (depth == width) {
+            int next = table.length;
+            int nextWidth = Math.min(width, height(node));
+            table = Arrays.copyOf(table, next + (1 << nextWidth));
+            table[offset + prefix] = Integer.MIN_VALUE | next << 5 | nextWidth;
+            table = fillTable(table, node, 0, 0, next, nextWidth);
+        } else {
+            table = fillTable(table, left[node], depth + 1, prefix << 1, offset, width);
+            table = fillTable(table, right[node], depth + 1, prefix << 1 | 1, offset, width);
+        }
+        return table;
+    }
+
+    private int height(int node) {
+        return isLeaf(node) ? 0 : 1 + Math.max(height(left[node]), height(right[node]));
+    }
+
+    /**
+     * @param width the number of bits each lookup looks at
+     * @param maxSymbols the most codes an entry holds
+     * @return the multi-code decoding table of this tree. Each entry holds
+     *         the values of the codes that lie whole within its bits, up to
+     *         maxSymbols of them and stopping before EOF, packed first to
+     *         last into the low 32 bits; their number in the next 8 bits;
+     *         and the total length of their codes above that. An entry with
+     *         no codes leaves the next code to the single-code table.
+     */
+    private long[] multiTable(int width, int maxSymbols) {
+        if (multiTable == null || multiBits != width || multiSymbols != maxSymbols) {
+            int[] single = decodeTable(width);
+            int mask = (1 << width) - 1;
+            multiTable = new long[1 << width];
+            for (int i = 0; i < multiTable.length; i++) {
+                int used = 0;
+                int count = 0;
+                long values = 0;
+                while (count < maxSymbols) {
+                    int entry = single[(i << used) & mask];
+                    if (entry < 0 || used + (entry & 0xFF) > width || entry >>> 8 == EOF) {
+                        break;
+                    }
+                    values = values << 8 | entry >>> 8;
+                    used += entry & 0xFF;
+                    count++;
                 }
-                out.writeBits(cur.value, 8);
-                cur = root;
+                multiTable[i] = (long) used << 40 | (long) count << 32 | values;
             }
+            multiBits = width;
+            multiSymbols = maxSymbols;
         }
+        return multiTable;
     }
 }
@@ -0,0 +1,54 @@
+package edu.grinnell.csc207.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A MappedSource reads a file through memory-mapped windows, so the bytes
+ * are never copied into user space. A single MappedByteBuffer cannot span
+ * more than 2 GB, so larger files are mapped one window at a time.
+ */
+class MappedSource implements ByteSource {
+    private final FileChannel channel;
+    private final long size;
+    private final long window;
+    private long position;  // file offset of the next window to map
+
+    /**
+     * Constructs a new MappedSource over the given file.
+     * @param channel the file to map, read from its current position
+     * @param window the number of bytes to map at a time (at most 2 GB)
+     * @throws IOException if the size of the file cannot be determined
+     */
+    MappedSource(FileChannel channel, long window) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        this.window = window;
+        this.position = channel.position();
+    }
+
+    @Override
+    public ByteBuffer next(ByteBuffer used) throws IOException {
+        if (position >= size) {
+            return null;
+        }
+        long length = Math.min(window, size - position);
+        ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        position += length;
+        return mapped;
+    }
+
+    @Override
+    public long transferTo(long count, BitOutputStream out) throws IOException {
+        long length = Math.min(count, size - position);
+        out.transferFrom(channel, position, length);
+        position += length;
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
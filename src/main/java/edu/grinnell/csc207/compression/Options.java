@@ -0,0 +1,278 @@
+package edu.grinnell.csc207.compression;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The tunable settings for encoding and decoding .grin files. The defaults
+ * suit most inputs; the Grin command line can override each of them.
+ */
+public class Options {
+    private int format = 1;
+    private BitInputStream.ReadMode readMode = BitInputStream.ReadMode.AUTO;
+    private boolean singlePass = false;
+    private long spillThreshold = 1L << 26;
+    private int writeBehind = 0;
+    private int maxCodeLength = 0;
+    private boolean interleaved = false;
+    private int decodeTableBits = 12;
+    private int decodeSymbols = 3;
+    private int threads = 1;
+    private ForkJoinPool pool = null;
+    private boolean verbose = false;
+
+    /** @return the .grin format version that encoding writes */
+    public int getFormat() {
+        return format;
+    }
+
+    /**
+     * Sets the .grin format version that encoding writes: 1 (the default)
+     * for a single tree and code stream, which every .grin decoder reads,
+     * or 2 for independently coded or stored blocks.
+     * @param format the format version
+     * @return these options
+     */
+    public Options setFormat(int format) {
+        if (format != 1 && format != 2) {
+            throw new IllegalArgumentException("Unknown format version: " + format);
+        }
+        this.format = format;
+        return this;
+    }
+
+    /** @return how input files are read */
+    public BitInputStream.ReadMode getReadMode() {
+        return readMode;
+    }
+
+    /**
+     * Sets how input files are read.
+     * @param readMode the new read mode
+     * @return these options
+     */
+    public Options setReadMode(BitInputStream.ReadMode readMode) {
+        this.readMode = readMode;
+        return this;
+    }
+
+    /**
+     * @return true iff version 1 encoding reads its input only once,
+     *         holding on to it for the encoding pass
+     */
+    public boolean isSinglePass() {
+        return singlePass;
+    }
+
+    /**
+     * Sets whether version 1 encoding reads its input only once, holding on
+     * to it for the encoding pass, rather than reading it twice. Standard
+     * input is always read once.
+     * @param singlePass true to read the input once
+     * @return these options
+     */
+    public Options setSinglePass(boolean singlePass) {
+        this.singlePass = singlePass;
+        return this;
+    }
+
+    /**
+     * @return the number of input bytes a single-pass encoding holds in
+     *         memory before moving them to a temporary file
+     */
+    public long getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * Sets the number of input bytes a single-pass encoding holds in memory
+     * before moving them to a temporary file.
+     * @param spillThreshold the threshold in bytes
+     * @return these options
+     */
+    public Options setSpillThreshold(long spillThreshold) {
+        if (spillThreshold < 0) {
+            throw new IllegalArgumentException("Illegal threshold: " + spillThreshold);
+        }
+        this.spillThreshold = spillThreshold;
+        return this;
+    }
+
+    /**
+     * @return the number of full output buffers that may be queued for a
+     *         background writer thread, or 0 if output is written directly
+     */
+    public int getWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * Sets the number of full output buffers that may be queued for a
+     * background writer thread.
+     * @param writeBehind the queue depth, or 0 to write output directly
+     * @return these options
+     */
+    public Options setWriteBehind(int writeBehind) {
+        if (writeBehind < 0) {
+            throw new IllegalArgumentException("Illegal queue depth: " + writeBehind);
+        }
+        this.writeBehind = writeBehind;
+        return this;
+    }
+
+    /**
+     * @return the longest code encoding may use, or 0 if codes are not
+     *         limited beyond what the format requires
+     */
+    public int getMaxCodeLength() {
+        return maxCodeLength;
+    }
+
+    /**
+     * Sets the longest code encoding may use. Limiting codes to no more
+     * than the decoding table size lets every code decode in one lookup;
+     * for text, a limit of 12 costs about 0.2% in compression.
+     * @param maxCodeLength the longest code in bits (9--63), or 0 for no
+     *        limit
+     * @return these options
+     */
+    public Options setMaxCodeLength(int maxCodeLength) {
+        if (maxCodeLength != 0 && (maxCodeLength < 9 || maxCodeLength > 63)) {
+            throw new IllegalArgumentException("Illegal code length limit: " + maxCodeLength);
+        }
+        this.maxCodeLength = maxCodeLength;
+        return this;
+    }
+
+    /**
+     * @return true iff version 2 encoding splits each block into four
+     *         streams that decode in step
+     */
+    public boolean isInterleaved() {
+        return interleaved;
+    }
+
+    /**
+     * Sets whether version 2 encoding splits each block into four streams
+     * of codes that decode in step. Decoding such files is faster, at the
+     * cost of a few bytes per block and codes limited to 12 bits.
+     * @param interleaved true to split blocks into streams
+     * @return these options
+     */
+    public Options setInterleaved(boolean interleaved) {
+        this.interleaved = interleaved;
+        return this;
+    }
+
+    /** @return the number of bits of input each decoding lookup looks at */
+    public int getDecodeTableBits() {
+        return decodeTableBits;
+    }
+
+    /**
+     * Sets the number of bits of input each decoding lookup looks at. The
+     * decoding tables have 2 to the power of this many entries.
+     * @param decodeTableBits the number of bits (1--16)
+     * @return these options
+     */
+    public Options setDecodeTableBits(int decodeTableBits) {
+        if (decodeTableBits < 1 || decodeTableBits > 16) {
+            throw new IllegalArgumentException("Illegal table size: " + decodeTableBits);
+        }
+        this.decodeTableBits = decodeTableBits;
+        return this;
+    }
+
+    /** @return the most bytes a single decoding lookup produces */
+    public int getDecodeSymbols() {
+        return decodeSymbols;
+    }
+
+    /**
+     * Sets the most bytes a single decoding lookup produces.
+     * @param decodeSymbols the number of bytes (1--4)
+     * @return these options
+     */
+    public Options setDecodeSymbols(int decodeSymbols) {
+        if (decodeSymbols < 1 || decodeSymbols > 4) {
+            throw new IllegalArgumentException("Illegal symbol count: " + decodeSymbols);
+        }
+        this.decodeSymbols = decodeSymbols;
+        return this;
+    }
+
+    /** @return the number of threads to work on, when there is no pool */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of threads to work on. With more than one, version 2
+     * blocks are encoded, indexed files decoded and version 1 inputs
+     * counted and encoded concurrently on a pool of that many threads made
+     * for the purpose. The output does not depend on the number.
+     * @param threads the number of threads
+     * @return these options
+     */
+    public Options setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Illegal thread count: " + threads);
+        }
+        this.threads = threads;
+        return this;
+    }
+
+    /** @return the pool to work on, or null to make one as needed */
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Sets a pool to work on, such as ForkJoinPool.commonPool(), in place of
+     * one made for each file. The pool is not shut down afterwards.
+     * @param pool the pool to work on, or null to make one as needed
+     * @return these options
+     */
+    public Options setPool(ForkJoinPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    /** @return true iff work is spread over more than one thread */
+    public boolean isParallel() {
+        return pool != null || threads > 1;
+    }
+
+    /**
+     * @return the pool to work on: the one set with setPool, or else a
+     *         new one of getThreads() threads
+     */
+    ForkJoinPool openPool() {
+        return pool != null ? pool : new ForkJoinPool(threads);
+    }
+
+    /**
+     * Shuts down a pool from openPool if it was made for the purpose,
+     * cancelling any work left on it.
+     * @param opened the pool openPool returned
+     */
+    void closePool(ForkJoinPool opened) {
+        if (opened != pool) {
+            opened.shutdownNow();
+        }
+    }
+
+    /** @return true iff I/O statistics are reported on standard error */
+    public boolean isVerbose() {
+        return verbose;
+    }
+
+    /**
+     * Sets whether I/O statistics are reported on standard error.
+     * @param verbose true to report them
+     * @return these options
+     */
+    public Options setVerbose(boolean verbose) {
+        this.verbose = verbose;
+        return this;
+    }
+}
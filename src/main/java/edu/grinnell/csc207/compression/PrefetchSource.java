@@ -0,0 +1,107 @@
+package edu.grinnell.csc207.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A PrefetchSource reads its input on a background thread, filling a
+ * bounded ring of buffers ahead of the consumer so that reading the next
+ * buffer overlaps with decoding the current one.
+ */
+class PrefetchSource implements ByteSource {
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final ReadableByteChannel channel;
+    private final BlockingQueue<ByteBuffer> free;    // buffers ready to be filled
+    private final BlockingQueue<ByteBuffer> filled;  // buffers ready to be read
+    private final Thread reader;
+    private volatile IOException error;  // the failure that ended the reader
+    private ByteBuffer current;          // the buffer the consumer is reading
+    private boolean ended;               // true once END has been taken
+    private long stallNanos;             // time next has spent waiting
+
+    /**
+     * Constructs a new PrefetchSource and starts reading the channel.
+     * @param channel the channel to read from
+     * @param size the size of each buffer in the ring
+     * @param depth the number of buffers in the ring (at least 2)
+     */
+    PrefetchSource(ReadableByteChannel channel, int size, int depth) {
+        this.channel = channel;
+        this.free = new ArrayBlockingQueue<>(depth);
+        this.filled = new ArrayBlockingQueue<>(depth + 1);
+        for (int i = 0; i < depth; i++) {
+            free.add(ByteBuffer.allocate(size));
+        }
+        this.reader = new Thread(this::readAhead, "grin-prefetch");
+        this.reader.setDaemon(true);
+        this.reader.start();
+    }
+
+    /** The body of the reader thread: fill free buffers until end of input. */
+    private void readAhead() {
+        try {
+            while (true) {
+                ByteBuffer buffer = free.take();
+                buffer.clear();
+                while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                    // Keep reading until the buffer is full or the input ends.
+                }
+                buffer.flip();
+                if (!buffer.hasRemaining()) {
+                    break;
+                }
+                filled.put(buffer);
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            return;
+        }
+        filled.add(END);
+    }
+
+    @Override
+    public ByteBuffer next(ByteBuffer used) throws IOException {
+        if (ended) {
+            return null;
+        }
+        if (current != null) {
+            free.add(current);
+            current = null;
+        }
+        long start = System.nanoTime();
+        ByteBuffer next;
+        try {
+            next = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for input.");
+        } finally {
+            stallNanos += System.nanoTime() - start;
+        }
+        if (next == END) {
+            ended = true;
+            if (error != null) {
+                throw error;
+            }
+            return null;
+        }
+        current = next;
+        return next;
+    }
+
+    @Override
+    public long stallNanos() {
+        return stallNanos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.interrupt();
+        channel.close();
+    }
+}
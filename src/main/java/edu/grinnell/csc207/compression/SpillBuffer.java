@@ -0,0 +1,126 @@
+package edu.grinnell.csc207.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A SpillBuffer holds on to a stream's bytes so they can be read a second
+ * time without going back to the stream, which is what lets a version 1
+ * .grin file be encoded from input that can only be read once. Bytes are
+ * kept in memory up to a threshold; past that everything is moved to a
+ * temporary file, which is deleted when the buffer is closed.
+ */
+class SpillBuffer implements AutoCloseable {
+    private static final int CHUNK_SIZE = 1 << 20;  // bytes per in-memory chunk
+
+    private final long threshold;
+    private final List<byte[]> chunks = new ArrayList<>();  // full but for the last
+    private int lastLength;     // bytes used in the last chunk
+    private long size;          // total bytes held
+    private FileChannel spill;  // the temporary file, once past the threshold
+
+    /**
+     * Constructs a new, empty SpillBuffer.
+     * @param threshold the number of bytes to hold in memory before
+     *        moving to a temporary file
+     */
+    SpillBuffer(long threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Reads every remaining byte of the given stream into this buffer,
+     * counting them as they go by.
+     * @param in the stream to read, which must be at a byte boundary
+     * @param histogram the histogram to count the bytes into
+     * @throws IOException if the temporary file cannot be written
+     */
+    void fill(BitInputStream in, Histogram histogram) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int n;
+        while ((n = in.readBytes(chunk, 0, CHUNK_SIZE)) > 0) {
+            histogram.count(chunk, 0, n);
+            size += n;
+            if (spill == null && size > threshold) {
+                startSpill();
+            }
+            if (spill != null) {
+                write(ByteBuffer.wrap(chunk, 0, n));
+            } else {
+                chunks.add(chunk);
+                lastLength = n;
+                chunk = new byte[CHUNK_SIZE];
+            }
+        }
+    }
+
+    private void startSpill() throws IOException {
+        Path file = Files.createTempFile("grin", ".spill");
+        spill = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        for (int i = 0; i < chunks.size(); i++) {
+            int length = i == chunks.size() - 1 ? lastLength : CHUNK_SIZE;
+            write(ByteBuffer.wrap(chunks.get(i), 0, length));
+        }
+        chunks.clear();
+    }
+
+    private void write(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            spill.write(data);
+        }
+    }
+
+    /** @return the number of bytes held */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Opens a stream over the bytes held, from the first. The buffer must
+     * outlive the stream.
+     * @return a new stream over the bytes held
+     * @throws IOException if the temporary file cannot be read
+     */
+    BitInputStream replay() throws IOException {
+        if (spill != null) {
+            return new BitInputStream(new ChannelSource(spill.position(0), CHUNK_SIZE) {
+                @Override
+                public void close() {
+                    // The temporary file is closed, and so deleted, with the buffer.
+                }
+            });
+        }
+        return new BitInputStream(new ByteSource() {
+            private int next = 0;  // index of the next chunk to hand out
+
+            @Override
+            public ByteBuffer next(ByteBuffer used) {
+                if (next == chunks.size()) {
+                    return null;
+                }
+                int length = next == chunks.size() - 1 ? lastLength : CHUNK_SIZE;
+                return ByteBuffer.wrap(chunks.get(next++), 0, length);
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+    }
+
+    /** Releases the memory held and deletes the temporary file, if any. */
+    @Override
+    public void close() throws IOException {
+        chunks.clear();
+        if (spill != null) {
+            spill.close();
+        }
+    }
+}
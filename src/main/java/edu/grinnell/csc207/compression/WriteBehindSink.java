@@ -0,0 +1,108 @@
+package edu.grinnell.csc207.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A WriteBehindSink hands full buffers to a background writer thread
+ * through a bounded queue, so the stream only waits on the output when
+ * the queue is full. A write failure is held until the next drain or
+ * close.
+ */
+class WriteBehindSink implements ByteSink {
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final WritableByteChannel channel;
+    private final BlockingQueue<ByteBuffer> pending;  // buffers waiting to be written
+    private final BlockingQueue<ByteBuffer> free;     // buffers ready to be refilled
+    private final Thread writer;
+    private volatile IOException error;  // the first failure of the writer
+    private long stallNanos;             // time drain has spent waiting
+
+    /**
+     * Constructs a new WriteBehindSink and starts its writer thread.
+     * @param channel the channel to write to
+     * @param size the size of each buffer handed back to the stream
+     * @param depth the number of full buffers that may wait in the queue
+     */
+    WriteBehindSink(WritableByteChannel channel, int size, int depth) {
+        this.channel = channel;
+        this.pending = new ArrayBlockingQueue<>(depth);
+        this.free = new LinkedBlockingQueue<>();
+        for (int i = 0; i <= depth; i++) {
+            free.add(ByteBuffer.allocate(size));
+        }
+        this.writer = new Thread(this::writeBehind, "grin-write-behind");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /** The body of the writer thread: write pending buffers until END. */
+    private void writeBehind() {
+        try {
+            while (true) {
+                ByteBuffer buffer = pending.take();
+                if (buffer == END) {
+                    return;
+                }
+                // After a failure keep recycling buffers so drain never blocks
+                // forever; the error is reported by drain or close.
+                try {
+                    while (error == null && buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                } catch (IOException e) {
+                    error = e;
+                }
+                buffer.clear();
+                free.put(buffer);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public ByteBuffer drain(ByteBuffer full) throws IOException {
+        if (error != null) {
+            throw error;
+        }
+        long start = System.nanoTime();
+        try {
+            pending.put(full);
+            return free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for output.");
+        } finally {
+            stallNanos += System.nanoTime() - start;
+        }
+    }
+
+    @Override
+    public long stallNanos() {
+        return stallNanos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        long start = System.nanoTime();
+        try {
+            pending.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for output.");
+        } finally {
+            stallNanos += System.nanoTime() - start;
+            channel.close();
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
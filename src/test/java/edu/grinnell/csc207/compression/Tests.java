@@ -1,5 +1,766 @@
 package edu.grinnell.csc207.compression;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.FutureTask;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.junit.jupiter.api.io.TempDir;
+
 public class Tests {
-    // TODO: fill in with your unit tests!
+    private static final int EOF = 256;
+    private static final int MAX_CODE_LENGTH = 63;  // the longest code HuffmanTree makes
+    private static final int BLOCK_SIZE = 1 << 20;  // BlockFormat's bytes per block
+
+    @TempDir
+    Path dir;
+
+    // Code lengths (HuffmanTree.optimalLengths)
+
+    /**
+     * @param counts the number of occurrences of each byte value
+     * @param lengths the code length of each value, EOF included
+     * @return the total bits of the codes of the given counts and one EOF
+     */
+    private static long cost(long[] counts, int[] lengths) {
+        long total = lengths[EOF];
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i] * lengths[i];
+        }
+        return total;
+    }
+
+    /**
+     * Finds the least total code length of the given weights with codes of
+     * at most maxLength bits by trying every nondecreasing assignment of
+     * lengths to the weights sorted from largest to smallest; an optimal
+     * code never gives a heavier weight a longer code.
+     * @param weights the weights of the values to code
+     * @param maxLength the longest code allowed
+     * @return the least total code length
+     */
+    private static long bruteForceCost(long[] weights, int maxLength) {
+        long[] sorted = weights.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length / 2; i++) {
+            long t = sorted[i];
+            sorted[i] = sorted[sorted.length - 1 - i];
+            sorted[sorted.length - 1 - i] = t;
+        }
+        return bruteForce(sorted, 0, 1, 1L << maxLength, maxLength, 0);
+    }
+
+    private static long bruteForce(long[] weights, int i, int minLength, long space,
+            int maxLength, long cost) {
+        if (i == weights.length) {
+            return cost;
+        }
+        long best = Long.MAX_VALUE;
+        for (int length = minLength; length <= maxLength; length++) {
+            long size = 1L << (maxLength - length);
+            if (size * (weights.length - i) < space) {
+                continue;  // the rest could not fill the code space
+            }
+            if (size <= space) {
+                best = Math.min(best, bruteForce(weights, i + 1, length, space - size,
+                        maxLength, cost + weights[i] * length));
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @param counts the number of occurrences of each byte value
+     * @return the weights of the values of a code: the nonzero counts and EOF
+     */
+    private static long[] weights(long[] counts) {
+        int n = 1;
+        for (long count : counts) {
+            n += count > 0 ? 1 : 0;
+        }
+        long[] weights = new long[n];
+        int k = 0;
+        for (long count : counts) {
+            if (count > 0) {
+                weights[k++] = count;
+            }
+        }
+        weights[k] = 1;
+        return weights;
+    }
+
+    private static BigInteger kraftSum(int[] lengths) {
+        BigInteger sum = BigInteger.ZERO;
+        for (int length : lengths) {
+            if (length > 0) {
+                sum = sum.add(BigInteger.ONE.shiftLeft(MAX_CODE_LENGTH - length));
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @param random the source of the byte values
+     * @param values the number of byte values to count
+     * @return counts of a few random byte values, skewed to force long codes
+     */
+    private static long[] skewedCounts(Random random, int values) {
+        long[] counts = new long[256];
+        long count = 1;
+        for (int i = 0; i < values; i++) {
+            int value;
+            do {
+                value = random.nextInt(256);
+            } while (counts[value] > 0);
+            // Roughly Fibonacci, so the unlimited code grows about one bit
+            // per value, with some noise to vary the shape.
+            counts[value] = count + random.nextInt((int) Math.min(count, 3) + 1);
+            count = count * 8 / 5 + 1;
+        }
+        return counts;
+    }
+
+    @Test
+    public void optimalLengthsMatchBruteForce() {
+        Random random = new Random(207);
+        for (int trial = 0; trial < 200; trial++) {
+            long[] counts = trial % 2 == 0 ? skewedCounts(random, 1 + random.nextInt(12))
+                    : new long[256];
+            if (trial % 2 == 1) {
+                for (int i = 0; i < 1 + random.nextInt(8); i++) {
+                    counts[random.nextInt(256)] = 1 + random.nextInt(1000);
+                }
+            }
+            long[] weights = weights(counts);
+            for (int maxLength : new int[] {9, 10, 11}) {
+                int[] lengths = HuffmanTree.optimalLengths(counts, maxLength);
+                assertEquals(bruteForceCost(weights, maxLength), cost(counts, lengths),
+                        "trial " + trial + ", limit " + maxLength);
+            }
+        }
+    }
+
+    @Test
+    public void optimalLengthsRespectLimit() {
+        Random random = new Random(208);
+        for (int trial = 0; trial < 100; trial++) {
+            long[] counts = skewedCounts(random, 20 + random.nextInt(60));
+            int unlimited = max(HuffmanTree.optimalLengths(counts, MAX_CODE_LENGTH));
+            for (int maxLength = 9; maxLength <= 16; maxLength++) {
+                int[] lengths = HuffmanTree.optimalLengths(counts, maxLength);
+                assertTrue(max(lengths) <= maxLength, "trial " + trial + ", limit " + maxLength);
+                if (unlimited <= maxLength) {
+                    assertEquals(cost(counts, HuffmanTree.optimalLengths(counts,
+                            MAX_CODE_LENGTH)), cost(counts, lengths));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void optimalLengthsFillCodeSpace() {
+        Random random = new Random(209);
+        BigInteger full = BigInteger.ONE.shiftLeft(MAX_CODE_LENGTH);
+        for (int trial = 0; trial < 100; trial++) {
+            long[] counts = trial % 2 == 0 ? skewedCounts(random, 1 + random.nextInt(80))
+                    : new long[256];
+            if (trial % 2 == 1) {
+                for (int i = 0; i < 256; i++) {
+                    counts[i] = random.nextInt(4) == 0 ? 0 : random.nextInt(1 << 20);
+                }
+            }
+            for (int maxLength : new int[] {9, 12, MAX_CODE_LENGTH}) {
+                int[] lengths = HuffmanTree.optimalLengths(counts, maxLength);
+                assertEquals(full, kraftSum(lengths), "trial " + trial + ", limit " + maxLength);
+            }
+        }
+    }
+
+    @Test
+    public void optimalLengthsOfOnlyEof() {
+        int[] lengths = HuffmanTree.optimalLengths(new long[256], 9);
+        assertEquals(0, max(lengths));
+    }
+
+    private static int max(int[] lengths) {
+        int max = 0;
+        for (int length : lengths) {
+            max = Math.max(max, length);
+        }
+        return max;
+    }
+
+    // Bit streams (BitOutputStream)
+
+    @Test
+    public void writeBitsFromBufferMatchesBitByBit() {
+        Random random = new Random(211);
+        for (int trial = 0; trial < 2000; trial++) {
+            int before = random.nextInt(trial % 4 == 0 ? 2 : 40) * (trial % 4 == 0 ? 8 : 1);
+            long n = random.nextInt(trial % 3 == 0 ? 20 : 400);
+            int skip = random.nextInt(4);  // bytes before the bits in the source
+            byte[] source = new byte[skip + (int) (n + 7) / 8 + random.nextInt(3)];
+            random.nextBytes(source);  // including garbage after the n bits
+            int after = random.nextInt(20);
+            long seed = random.nextLong();
+
+            ByteBuffer expected = ByteBuffer.allocate(source.length + 16);
+            try (BitOutputStream out = new BitOutputStream(expected)) {
+                writeRandomBits(new Random(seed), before, out);
+                for (long i = 0; i < n; i++) {
+                    out.writeBit((source[skip + (int) (i / 8)] >>> (7 - i % 8)) & 1);
+                }
+                writeRandomBits(new Random(seed + 1), after, out);
+            }
+
+            ByteBuffer actual = ByteBuffer.allocate(source.length + 16);
+            ByteBuffer src = ByteBuffer.wrap(source);
+            src.position(skip);
+            try (BitOutputStream out = new BitOutputStream(actual)) {
+                writeRandomBits(new Random(seed), before, out);
+                out.writeBits(src, n);
+                writeRandomBits(new Random(seed + 1), after, out);
+            }
+
+            String what = "trial " + trial + ": " + n + " bits after " + before;
+            assertEquals(skip + (n + 7) / 8, src.position(), what);
+            assertArrayEquals(Arrays.copyOf(expected.array(), expected.position()),
+                    Arrays.copyOf(actual.array(), actual.position()), what);
+        }
+    }
+
+    @Test
+    public void writeBitsFromBufferRejectsTooManyBits() {
+        ByteBuffer src = ByteBuffer.allocate(2);
+        BitOutputStream out = new BitOutputStream(ByteBuffer.allocate(8));
+        assertThrows(IllegalArgumentException.class, () -> out.writeBits(src, 17));
+        assertThrows(IllegalArgumentException.class, () -> out.writeBits(src, -1));
+    }
+
+    @Test
+    public void closeReportsDeferredWriteFailure() {
+        WritableByteChannel broken = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                throw new IOException("Disk full.");
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        BitOutputStream out = new BitOutputStream(broken, 2);
+        out.writeBytes(ByteBuffer.allocate(1000));  // queued, not yet written
+        assertThrows(RuntimeException.class, out::close);
+    }
+
+    private static void writeRandomBits(Random random, int n, BitOutputStream out) {
+        while (n > 0) {
+            int k = Math.min(n, 1 + random.nextInt(32));
+            out.writeBits(random.nextInt(), k);
+            n -= k;
+        }
+    }
+
+    // File formats (Grin, BlockFormat, BlockIndex)
+
+    /** @return the inputs to round-trip, each named for the failure messages */
+    private static Object[][] inputs() {
+        Random random = new Random(210);
+        byte[] one = {'x'};
+        byte[] text = text(random, BLOCK_SIZE + BLOCK_SIZE / 2);
+        byte[] noise = new byte[BLOCK_SIZE + 1000];
+        random.nextBytes(noise);
+        byte[] mixed = new byte[3 * BLOCK_SIZE];  // text, noise, then one value
+        System.arraycopy(text, 0, mixed, 0, BLOCK_SIZE);
+        System.arraycopy(noise, 0, mixed, BLOCK_SIZE, BLOCK_SIZE);
+        Arrays.fill(mixed, 2 * BLOCK_SIZE, mixed.length, (byte) 'a');
+        return new Object[][] {
+            {"empty", new byte[0]},
+            {"one byte", one},
+            {"text", text},
+            {"random", noise},
+            {"mixed", mixed},
+        };
+    }
+
+    /**
+     * @param random the source of the words
+     * @param length the number of bytes to make
+     * @return length bytes of words drawn with skewed frequencies
+     */
+    private static byte[] text(Random random, int length) {
+        String[] words = {"the ", "of ", "and ", "a ", "to ", "in ", "is ", "huffman ",
+            "code ", "tree ", "block ", "stream ", "Grinnell ", "\n", "compression, "};
+        byte[] text = new byte[length];
+        int i = 0;
+        while (i < length) {
+            String word = words[Math.min(random.nextInt(words.length),
+                    random.nextInt(words.length))];
+            for (int j = 0; j < word.length() && i < length; j++) {
+                text[i++] = (byte) word.charAt(j);
+            }
+        }
+        return text;
+    }
+
+    /** @return the options of each combination of format flags to test */
+    private static Options[] formats() {
+        return new Options[] {
+            new Options().setFormat(1),
+            new Options().setFormat(2),
+            new Options().setFormat(2).setInterleaved(true),
+        };
+    }
+
+    /** @return the options of each way of reading the input to test */
+    private static Options[] readers() {
+        return new Options[] {
+            new Options().setReadMode(BitInputStream.ReadMode.AUTO),
+            new Options().setReadMode(BitInputStream.ReadMode.BUFFERED),
+            new Options().setReadMode(BitInputStream.ReadMode.MAPPED),
+            new Options().setReadMode(BitInputStream.ReadMode.PREFETCH),
+        };
+    }
+
+    /** @return the options of each shape of decoding table to test */
+    private static Options[] tables() {
+        return new Options[] {
+            new Options().setDecodeTableBits(1).setDecodeSymbols(1),
+            new Options().setDecodeTableBits(16).setDecodeSymbols(4),
+            new Options().setDecodeTableBits(12).setDecodeSymbols(3),
+        };
+    }
+
+    /**
+     * @param options the options to describe
+     * @return the options as they would be given on the command line
+     */
+    private static String describe(Options options) {
+        return "-f " + options.getFormat() + (options.isInterleaved() ? " -i" : "")
+                + " -p " + options.getThreads()
+                + " -m " + options.getReadMode().toString().toLowerCase()
+                + " -t " + options.getDecodeTableBits() + " -n " + options.getDecodeSymbols();
+    }
+
+    private byte[] encode(byte[] data, Options options) throws IOException {
+        Path in = Files.write(dir.resolve("in"), data);
+        Path out = dir.resolve("in.grin");
+        Grin.encode(in.toString(), out.toString(), options);
+        return Files.readAllBytes(out);
+    }
+
+    private byte[] decode(byte[] grin, Options options) throws IOException {
+        Path in = Files.write(dir.resolve("out.grin"), grin);
+        Path out = dir.resolve("out");
+        Grin.decode(in.toString(), out.toString(), options);
+        return Files.readAllBytes(out);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        for (Object[] input : inputs()) {
+            byte[] data = (byte[]) input[1];
+            for (Options options : formats()) {
+                byte[] grin = encode(data, options);
+                assertArrayEquals(data, Grin.decompress(grin),
+                        input[0] + " with " + describe(options) + ", in memory");
+                for (Options reader : readers()) {
+                    options.setReadMode(reader.getReadMode());
+                    String what = input[0] + " with " + describe(options);
+                    assertArrayEquals(grin, encode(data, options), what);
+                    assertArrayEquals(data, decode(grin, reader),
+                            what + ", decoded with " + describe(reader));
+                    reader.setThreads(3);
+                    assertArrayEquals(data, decode(grin, reader),
+                            what + ", decoded with " + describe(reader));
+                }
+                for (Options table : tables()) {
+                    String what = input[0] + " with " + describe(options);
+                    assertArrayEquals(data, decode(grin, table),
+                            what + ", decoded with " + describe(table));
+                    table.setThreads(3);
+                    assertArrayEquals(data, decode(grin, table),
+                            what + ", decoded with " + describe(table));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void compressInMemory() throws IOException {
+        for (Object[] input : inputs()) {
+            byte[] data = (byte[]) input[1];
+            String what = (String) input[0];
+            byte[] grin = Grin.compress(data);
+            assertArrayEquals(encode(data, new Options().setFormat(1)), grin, what);
+
+            for (boolean direct : new boolean[] {false, true}) {
+                String how = what + (direct ? ", direct" : ", heap");
+                ByteBuffer src = allocate(data.length, direct).put(data).flip();
+                long size = Grin.compressedSize(src);
+                assertEquals(grin.length, size, how);
+                assertEquals(0, src.position(), how);
+                ByteBuffer dst = allocate((int) size, direct);
+                Grin.compress(src, dst);
+                assertFalse(src.hasRemaining(), how);
+                assertFalse(dst.hasRemaining(), how);  // sized exactly
+
+                dst.flip();
+                byte[] compressed = new byte[dst.remaining()];
+                dst.duplicate().get(compressed);
+                assertArrayEquals(grin, compressed, how);
+                ByteBuffer out = allocate((int) Grin.decompressedSize(dst), direct);
+                assertEquals(0, dst.position(), how);
+                Grin.decompress(dst, out);
+                assertFalse(out.hasRemaining(), how);
+                byte[] decompressed = new byte[data.length];
+                out.flip().get(decompressed);
+                assertArrayEquals(data, decompressed, how);
+            }
+        }
+    }
+
+    /**
+     * @param capacity the size of the buffer
+     * @param direct whether the buffer should be direct
+     * @return a new buffer of the given size
+     */
+    private static ByteBuffer allocate(int capacity, boolean direct) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    @Test
+    public void outputIndependentOfThreads() throws IOException {
+        for (Object[] input : inputs()) {
+            byte[] data = (byte[]) input[1];
+            for (Options options : formats()) {
+                byte[] expected = encode(data, options);
+                for (int threads = 2; threads <= 4; threads++) {
+                    options.setThreads(threads);
+                    assertArrayEquals(expected, encode(data, options),
+                            input[0] + " with " + describe(options));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void blockTypes() throws IOException {
+        // Text is Huffman-coded, noise stored, and both decode to themselves.
+        Object[][] inputs = inputs();
+        byte[] text = (byte[]) inputs[2][1];
+        byte[] noise = (byte[]) inputs[3][1];
+        for (Options options : formats()) {
+            options.setFormat(2);
+            assertTrue(encode(text, options).length < text.length / 2, describe(options));
+            // Two stored blocks: the header, the blocks with their headers,
+            // END, two index entries and the trailer.
+            assertEquals(BlockFormat.HEADER_SIZE + 2 * 9 + noise.length + 1
+                    + 2 * BlockIndex.ENTRY_SIZE + BlockIndex.TRAILER_SIZE,
+                    encode(noise, options).length, describe(options));
+        }
+    }
+
+    @Test
+    public void blockIndex() throws IOException {
+        byte[] data = (byte[]) inputs()[4][1];
+        for (Options options : formats()) {
+            if (options.getFormat() != 2) {
+                continue;
+            }
+            ByteBuffer grin = ByteBuffer.wrap(encode(data, options));
+            BlockIndex index = BlockIndex.read(grin);
+            assertEquals(3, index.size());
+            assertEquals(data.length, index.decodedLength());
+            assertEquals(data.length, Grin.decompressedSize(grin));
+            for (int i = 0; i < index.size(); i++) {
+                assertEquals(BLOCK_SIZE, index.length(i));
+                // Each entry points at a block header giving the same length.
+                assertEquals(BLOCK_SIZE, grin.getInt((int) index.offset(i) + 1));
+            }
+        }
+    }
+
+    @Test
+    public void version1HasNoIndex() throws IOException {
+        byte[] grin = encode((byte[]) inputs()[2][1], new Options().setFormat(1));
+        assertEquals(null, BlockIndex.read(ByteBuffer.wrap(grin)));
+    }
+
+    /**
+     * Asserts that every way of decoding rejects the given file.
+     * @param grin the contents of the file
+     * @param what what is wrong with the file, for the failure messages
+     */
+    private void assertInvalid(byte[] grin, String what) throws IOException {
+        assertThrows(IllegalArgumentException.class, () -> Grin.decompress(grin), what);
+        assertThrows(IllegalArgumentException.class, () -> decode(grin, new Options()), what);
+        assertThrows(IllegalArgumentException.class,
+                () -> decode(grin, new Options().setThreads(2)), what + ", -p 2");
+    }
+
+    @Test
+    public void corruptTrailer() throws IOException {
+        byte[] data = (byte[]) inputs()[4][1];
+        byte[] grin = encode(data, new Options().setFormat(2));
+        int n = grin.length;
+        // The trailer is the index offset, the block count, then MAGIC.
+        for (int at : new int[] {n - 16, n - 13, n - 9, n - 8, n - 5, n - 4, n - 1}) {
+            byte[] corrupt = grin.clone();
+            corrupt[at] ^= 0x40;
+            assertInvalid(corrupt, "trailer byte " + (at - n));
+        }
+        // So is an index entry that points outside the file.
+        byte[] corrupt = grin.clone();
+        int entries = n - 16 - 3 * 12;
+        corrupt[entries] = 0x7F;
+        assertInvalid(corrupt, "index entry");
+    }
+
+    @Test
+    public void corruptBlockHeader() throws IOException {
+        byte[] data = (byte[]) inputs()[4][1];
+        byte[] grin = encode(data, new Options().setFormat(2).setInterleaved(true));
+        // The first block's header follows the magic number and version.
+        int header = BlockFormat.HEADER_SIZE;
+        byte[] corrupt = grin.clone();
+        corrupt[header + 1] = 0x50;  // a length far past the block size
+        assertInvalid(corrupt, "block length");
+        corrupt = grin.clone();
+        corrupt[header + 5] = 0x70;  // a payload far past the end of the file
+        assertInvalid(corrupt, "block payload");
+        corrupt = grin.clone();
+        corrupt[header + 8]++;  // a payload running one byte into the next block
+        assertInvalid(corrupt, "block payload + 1");
+        corrupt = grin.clone();
+        corrupt[header + 8]--;
+        assertInvalid(corrupt, "block payload - 1");
+    }
+
+    @Test
+    public void truncated() throws IOException {
+        byte[] data = (byte[]) inputs()[4][1];
+        for (Options options : formats()) {
+            options.setFormat(2);
+            byte[] grin = encode(data, options);
+            for (int length : new int[] {0, 3, 4, 5, 6, 14, 100, BLOCK_SIZE / 3,
+                    grin.length / 2, grin.length - 17, grin.length - 16, grin.length - 1}) {
+                byte[] cut = Arrays.copyOf(grin, length);
+                String what = "first " + length + " bytes with " + describe(options);
+                assertThrows(IllegalArgumentException.class, () -> Grin.decompress(cut), what);
+                assertThrows(IllegalArgumentException.class,
+                        () -> decode(cut, new Options()), what);
+            }
+        }
+    }
+
+    @Test
+    public void unsupportedVersion() throws IOException {
+        byte[] grin = encode(new byte[] {1, 2, 3}, new Options().setFormat(2));
+        grin[4] = (byte) (BlockFormat.VERSION_BYTE + 1);
+        assertThrows(IllegalArgumentException.class, () -> decode(grin, new Options()));
+        grin[4] = 0;
+        assertThrows(IllegalArgumentException.class, () -> decode(grin, new Options()));
+    }
+
+    // Pipes and streams (BitInputStream, ChannelSource, SpillBuffer)
+
+    /**
+     * Makes a named pipe in the temporary directory, skipping the test where
+     * there is no mkfifo.
+     * @param name the name of the pipe
+     * @return the path of the pipe
+     */
+    private Path fifo(String name) throws IOException, InterruptedException {
+        Path fifo = dir.resolve(name);
+        int status;
+        try {
+            status = new ProcessBuilder("mkfifo", fifo.toString()).start().waitFor();
+        } catch (IOException e) {
+            status = -1;
+        }
+        assumeTrue(status == 0, "mkfifo is not available");
+        return fifo;
+    }
+
+    /**
+     * Writes the given bytes into the given pipe on another thread, since
+     * the pipe blocks until it is opened for reading too.
+     * @param fifo the pipe to write to
+     * @param data the bytes to write
+     * @return the writing thread
+     */
+    private static Thread feed(Path fifo, byte[] data) {
+        Thread writer = new Thread(() -> {
+            try {
+                Files.write(fifo, data);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        writer.setDaemon(true);
+        writer.start();
+        return writer;
+    }
+
+    /**
+     * Reads everything written into the given pipe on another thread.
+     * @param fifo the pipe to read
+     * @return the bytes read, once the pipe has been closed
+     */
+    private static FutureTask<byte[]> collect(Path fifo) {
+        FutureTask<byte[]> reader = new FutureTask<>(() -> Files.readAllBytes(fifo));
+        Thread thread = new Thread(reader);
+        thread.setDaemon(true);
+        thread.start();
+        return reader;
+    }
+
+    /**
+     * @param grin the stream to decode
+     * @return the bytes Grin.decode writes for the given stream
+     */
+    private static byte[] decodeStream(InputStream grin) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (BitInputStream in = new BitInputStream(grin);
+             BitOutputStream out = new BitOutputStream(bytes)) {
+            Grin.decode(in, out);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void decodeFromPipes() throws Exception {
+        Path fifo = fifo("pipe");
+        Path out = dir.resolve("out");
+        for (Object[] input : inputs()) {
+            byte[] data = (byte[]) input[1];
+            for (Options options : formats()) {
+                String what = input[0] + " with " + describe(options);
+                byte[] grin = encode(data, options);
+                assertArrayEquals(data, decodeStream(new ByteArrayInputStream(grin)),
+                        what + ", from a stream");
+
+                Thread writer = feed(fifo, grin);
+                try (InputStream in = new FileInputStream(fifo.toFile())) {
+                    assertArrayEquals(data, decodeStream(in), what + ", from a pipe's stream");
+                }
+                writer.join();
+
+                writer = feed(fifo, grin);
+                Grin.decode(fifo.toString(), out.toString(), new Options());
+                writer.join();
+                assertArrayEquals(data, Files.readAllBytes(out), what + ", from a named pipe");
+            }
+        }
+    }
+
+    /**
+     * Runs the given action with standard input reading the given bytes and
+     * standard output collected.
+     * @param input the bytes for standard input
+     * @param action the action to run
+     * @return the bytes the action wrote to standard output
+     */
+    private static byte[] withStandardStreams(byte[] input, Executable action)
+            throws Throwable {
+        InputStream stdin = System.in;
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            System.setIn(new ByteArrayInputStream(input));
+            System.setOut(new PrintStream(bytes));
+            action.execute();
+        } finally {
+            System.setIn(stdin);
+            System.setOut(stdout);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void encodeInOnePass() throws Throwable {
+        Path fifo = fifo("pipe");
+        Path out = dir.resolve("out.grin");
+        for (Object[] input : inputs()) {
+            byte[] data = (byte[]) input[1];
+            byte[] expected = encode(data, new Options().setFormat(1));
+            for (long threshold : new long[] {new Options().getSpillThreshold(), 0}) {
+                Options options = new Options().setFormat(1).setSpillThreshold(threshold);
+                String what = input[0] + " spilled past " + threshold + " bytes";
+                assertArrayEquals(expected, encode(data, options.setSinglePass(true)),
+                        what + ", with -s");
+                options.setSinglePass(false);
+
+                Thread writer = feed(fifo, data);
+                Grin.encode(fifo.toString(), out.toString(), options);
+                writer.join();
+                assertArrayEquals(expected, Files.readAllBytes(out), what + ", from a named pipe");
+
+                assertArrayEquals(expected,
+                        withStandardStreams(data, () -> Grin.encode("-", "-", options)),
+                        what + ", from standard input");
+            }
+        }
+    }
+
+    @Test
+    public void parallelWithPipes() throws Throwable {
+        // A pipe cannot be read or written by position, so these fall back
+        // to the sequential decoder.
+        Path fifo = fifo("pipe");
+        Path file = dir.resolve("file");
+        for (Object[] input : inputs()) {
+            byte[] data = (byte[]) input[1];
+            for (Options options : formats()) {
+                options.setThreads(2);
+                String what = input[0] + " with " + describe(options);
+                byte[] grin = encode(data, options);
+
+                Thread writer = feed(fifo, grin);
+                Grin.decode(fifo.toString(), file.toString(), options);
+                writer.join();
+                assertArrayEquals(data, Files.readAllBytes(file), what + ", from a named pipe");
+
+                Files.write(file, grin);
+                FutureTask<byte[]> reader = collect(fifo);
+                Grin.decode(file.toString(), fifo.toString(), options);
+                assertArrayEquals(data, reader.get(), what + ", to a named pipe");
+
+                assertArrayEquals(data,
+                        withStandardStreams(grin, () -> Grin.decode("-", "-", options)),
+                        what + ", through standard input and output");
+
+                writer = feed(fifo, data);
+                Grin.encode(fifo.toString(), file.toString(), options);
+                writer.join();
+                assertArrayEquals(grin, Files.readAllBytes(file), what + ", encoded from a pipe");
+            }
+        }
+    }
 }
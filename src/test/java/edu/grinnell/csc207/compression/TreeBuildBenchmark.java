@@ -0,0 +1,110 @@
+package edu.grinnell.csc207.compression;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Times computing Huffman code lengths with HuffmanTree.optimalLengths
+ * against the PriorityQueue of nodes it replaced. Run its main method
+ * directly; it is not a unit test.
+ */
+public class TreeBuildBenchmark {
+    private static final int HISTOGRAMS = 1000;
+    private static final int ROUNDS = 20;
+
+    private static class Node implements Comparable<Node> {
+        final Node left;
+        final Node right;
+        final long freq;
+        final short value;
+
+        Node(short value, long freq) {
+            this.left = null;
+            this.right = null;
+            this.freq = freq;
+            this.value = value;
+        }
+
+        Node(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+            this.freq = left.freq + right.freq;
+            this.value = -1;
+        }
+
+        @Override
+        public int compareTo(Node other) {
+            return Long.compare(this.freq, other.freq);
+        }
+    }
+
+    private static int[] queueLengths(long[] counts) {
+        PriorityQueue<Node> pq = new PriorityQueue<>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                pq.add(new Node((short) i, counts[i]));
+            }
+        }
+        pq.add(new Node((short) 256, 1));
+        while (pq.size() >= 2) {
+            pq.add(new Node(pq.remove(), pq.remove()));
+        }
+        int[] lengths = new int[257];
+        fillLengths(pq.remove(), 0, lengths);
+        return lengths;
+    }
+
+    private static void fillLengths(Node node, int depth, int[] lengths) {
+        if (node.left == null) {
+            lengths[node.value] = depth;
+        } else {
+            fillLengths(node.left, depth + 1, lengths);
+            fillLengths(node.right, depth + 1, lengths);
+        }
+    }
+
+    private static long cost(long[] counts, int[] lengths) {
+        long total = lengths[256];
+        for (int i = 0; i < counts.length; i++) {
+            total += counts[i] * lengths[i];
+        }
+        return total;
+    }
+
+    /**
+     * Runs the benchmark over random histograms with skewed counts, like
+     * those of blocks of text, and prints the time per build of each way.
+     * @param args the command-line arguments (unused)
+     */
+    public static void main(String[] args) {
+        Random random = new Random(207);
+        long[][] histograms = new long[HISTOGRAMS][256];
+        for (long[] counts : histograms) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = random.nextInt(1 << random.nextInt(16));
+            }
+        }
+        for (long[] counts : histograms) {
+            if (cost(counts, queueLengths(counts))
+                    != cost(counts, HuffmanTree.optimalLengths(counts, 63))) {
+                throw new AssertionError("Builders disagree on the optimal cost.");
+            }
+        }
+
+        long sink = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (long[] counts : histograms) {
+                sink += queueLengths(counts)[256];
+            }
+            long middle = System.nanoTime();
+            for (long[] counts : histograms) {
+                sink += HuffmanTree.optimalLengths(counts, 63)[256];
+            }
+            long end = System.nanoTime();
+            System.out.printf("round %2d: PriorityQueue %6d ns/tree, two-queue %6d ns/tree%n",
+                    round, (middle - start) / HISTOGRAMS, (end - middle) / HISTOGRAMS);
+        }
+        System.out.println(sink == 0 ? "" : "done");
+    }
+}